@@ -0,0 +1,134 @@
+package it.polito.nexa.pc;
+
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the chunks on writer threads, so that the main loop goes on filling a fresh store
+ * while the previous one is serialized: with one chunk in flight the stores are double-buffered.
+ * A chunk is written through a large buffer to a FileChannel, which is forced to disk before the
+ * chunk is considered published.
+ *
+ * The number of chunks handed over and not yet written is bounded: publish blocks while the
+ * writers are behind, so at most that many full stores are kept in memory besides the current one.
+ */
+public class AsyncChunkPublisher {
+
+    private static int BUFFER_SIZE = 1 << 20;
+
+    private ExecutorService writers;
+    private Semaphore inFlight;
+    private int maxInFlight;
+    private List<String> errors = new ArrayList<>();
+    private long waitMillis = 0;
+
+    /**
+     * @param maxInFlight Chunks being written while the next one is filled
+     * @param threads Writer threads
+     */
+    public AsyncChunkPublisher(int maxInFlight, int threads) {
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.writers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "chunk-publisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Hand a full store to the writers; the caller must not use it any more
+     */
+    public void publish(final String filePath, final TriplesStore store) {
+        long start = System.currentTimeMillis();
+        inFlight.acquireUninterruptibly();
+        waitMillis += System.currentTimeMillis() - start;
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(filePath, store);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (errors) {
+                        errors.add(filePath + ": " + e.getMessage());
+                    }
+                    System.out.println("Error writing " + filePath + ": " + e.getMessage());
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private static void write(String filePath, TriplesStore store) throws IOException {
+        File file = new File(filePath);
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (Span span = Profiling.begin(Stage.CHUNK_PUBLISH);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            store.writeNTriples(out);
+            out.flush();
+            channel.force(true);
+            span.path(filePath).triples(store.size());
+            if (span.isRecording()) {
+                span.bytes(channel.size());
+            }
+        }
+    }
+
+    /**
+     * Wait until every chunk handed over so far is on disk
+     * @return False if some chunk could not be written
+     */
+    public boolean awaitPublished() {
+        long start = System.currentTimeMillis();
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        waitMillis += System.currentTimeMillis() - start;
+        synchronized (errors) {
+            return errors.isEmpty();
+        }
+    }
+
+    /**
+     * Wait for the pending chunks and stop the writers
+     * @return False if some chunk could not be written
+     */
+    public boolean close() {
+        boolean published = awaitPublished();
+        writers.shutdown();
+        try {
+            writers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            // The writers are idle
+        }
+        return published;
+    }
+
+    /**
+     * @return Milliseconds the main loop has waited for the writers
+     */
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+}
@@ -0,0 +1,165 @@
+package it.polito.nexa.pc;
+
+import it.polito.nexa.pc.businessEntities.CompanyAggregator;
+import it.polito.nexa.pc.statistics.SpendingStatistics;
+import it.polito.nexa.pc.triplifiers.EmitOnceRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of a TriplesGenerator run at a chunk boundary: the position in the (sorted) list of
+ * input files, the chunks already published and the state of the business entities, of the
+ * statistics and of the emit-once registry. Nothing of the chunk in progress is saved, since
+ * it is rebuilt from the files that follow the position.
+ *
+ * A checkpoint is written to a temporary file and renamed, so a crash while writing it leaves
+ * the previous one in place.
+ */
+public class Checkpoint {
+
+    // 2: the emit-once registry holds the hashes of statements instead of resources
+    private static int VERSION = 2;
+
+    private File file;
+
+    private String runName;
+    private String configuration;
+    private int position;
+    private int processedFiles;
+    private String lastFile;
+    private List<File> chunks = new ArrayList<>();
+
+    public Checkpoint(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @param configuration The command line of the run, a checkpoint is resumed only with the same one
+     * @param position Number of input files already read
+     * @param lastFile The last file read, to check that the input has not changed
+     */
+    public void save(String runName, String configuration, int position, int processedFiles, String lastFile,
+                     List<File> chunks, CompanyAggregator aggregator, SpendingStatistics statistics,
+                     EmitOnceRegistry emitOnceRegistry) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(VERSION);
+            out.writeUTF(runName);
+            out.writeUTF(configuration);
+            out.writeInt(position);
+            out.writeInt(processedFiles);
+            out.writeUTF(lastFile);
+            out.writeInt(chunks.size());
+            for (File chunk : chunks) {
+                out.writeUTF(chunk.getPath());
+            }
+            out.writeBoolean(aggregator != null);
+            if (aggregator != null) {
+                aggregator.writeSnapshot(out);
+            }
+            out.writeBoolean(statistics != null);
+            if (statistics != null) {
+                statistics.writeSnapshot(out);
+            }
+            out.writeBoolean(emitOnceRegistry != null);
+            if (emitOnceRegistry != null) {
+                emitOnceRegistry.writeSnapshot(out);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.runName = runName;
+        this.configuration = configuration;
+        this.position = position;
+        this.processedFiles = processedFiles;
+        this.lastFile = lastFile;
+        this.chunks = new ArrayList<>(chunks);
+    }
+
+    /**
+     * Read the checkpoint and restore the state of the given components, which must be
+     * empty and enabled exactly as in the run that wrote it
+     */
+    public void restore(CompanyAggregator aggregator, SpendingStatistics statistics,
+                        EmitOnceRegistry emitOnceRegistry) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported checkpoint version");
+            }
+            runName = in.readUTF();
+            configuration = in.readUTF();
+            position = in.readInt();
+            processedFiles = in.readInt();
+            lastFile = in.readUTF();
+            chunks.clear();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                chunks.add(new File(in.readUTF()));
+            }
+            if (in.readBoolean() != (aggregator != null)) {
+                throw new IOException("The checkpoint was written with a different --entities option");
+            }
+            if (aggregator != null) {
+                aggregator.mergeSnapshot(in);
+            }
+            if (in.readBoolean() != (statistics != null)) {
+                throw new IOException("The checkpoint was written with a different --statistics option");
+            }
+            if (statistics != null) {
+                statistics.mergeSnapshot(in);
+            }
+            if (in.readBoolean() != (emitOnceRegistry != null)) {
+                throw new IOException("The checkpoint was written with a different --emit-once option");
+            }
+            if (emitOnceRegistry != null) {
+                emitOnceRegistry.readSnapshot(in);
+            }
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    public String getRunName() {
+        return runName;
+    }
+
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getProcessedFiles() {
+        return processedFiles;
+    }
+
+    public String getLastFile() {
+        return lastFile;
+    }
+
+    public List<File> getChunks() {
+        return chunks;
+    }
+}
@@ -0,0 +1,234 @@
+package it.polito.nexa.pc;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.RegexFileFilter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge the N-Triples chunks published by TriplesGenerator into a single file, sorted and
+ * without duplicates, using a disk-based external merge sort in a fixed memory budget.
+ *
+ * The lines are compared as strings: every line starts with its subject, hence the output
+ * is clustered by subject, which compresses better and loads faster into triple stores.
+ */
+public class ChunksMerger {
+
+    // Maximum number of runs merged at once, to bound the open file handles
+    private static int MAX_FAN_IN = 128;
+
+    private long memoryBudget;
+    private File tmpDir;
+    private long inputLines = 0;
+    private long outputLines = 0;
+
+    public ChunksMerger(long memoryBudget, File tmpDir) {
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() < 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: ChunksMerger <output.nt> <chunk file or directory>... [--memory <MB>] [--tmp <dir>]");
+            System.exit(1);
+        }
+
+        long startTime = System.currentTimeMillis();
+        File output = new File(options.getPositional().get(0));
+        List<File> inputs = listChunks(options.getPositional().subList(1, options.getPositional().size()));
+        System.out.println(inputs.size() + " chunks to merge");
+
+        long memoryBudget = options.getLong("memory", 256) * 1024 * 1024;
+        File tmpDir = new File(options.get("tmp", output.getAbsoluteFile().getParent() + "/merge-tmp"));
+        ChunksMerger merger = new ChunksMerger(memoryBudget, tmpDir);
+        merger.merge(inputs, output);
+
+        System.out.println("Read " + merger.getInputLines() + " triples, written " + merger.getOutputLines() + " distinct triples");
+        System.out.println("Time in seconds: " + (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    /**
+     * Expand the given paths into the list of .nt files, directories are scanned recursively
+     */
+    public static List<File> listChunks(List<String> paths) {
+        List<File> chunks = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                chunks.addAll(FileUtils.listFiles(file, new RegexFileFilter("([^\\s]+(\\.(?i)(nt))$)"), DirectoryFileFilter.DIRECTORY));
+            } else {
+                chunks.add(file);
+            }
+        }
+        Collections.sort(chunks);
+        return chunks;
+    }
+
+    /**
+     * Sort and deduplicate the lines of all the inputs into the output file
+     */
+    public void merge(List<File> inputs, File output) throws IOException {
+        tmpDir.mkdirs();
+        List<File> runs = createRuns(inputs);
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                File run = File.createTempFile("run", ".nt", tmpDir);
+                mergeRuns(group, run);
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        if (output.getAbsoluteFile().getParentFile() != null) {
+            output.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        outputLines = mergeRuns(runs, output);
+        tmpDir.delete();
+    }
+
+    public long getInputLines() {
+        return inputLines;
+    }
+
+    public long getOutputLines() {
+        return outputLines;
+    }
+
+    /**
+     * Read the inputs in slices that fit the memory budget and write each slice sorted
+     */
+    private List<File> createRuns(List<File> inputs) throws IOException {
+        List<File> runs = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        long usedMemory = 0;
+        for (File input : inputs) {
+            try (BufferedReader reader = openReader(input)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    lines.add(line);
+                    inputLines++;
+                    // String header, char array and list slot
+                    usedMemory += 64 + 2L * line.length();
+                    if (usedMemory >= memoryBudget) {
+                        runs.add(writeRun(lines));
+                        lines.clear();
+                        usedMemory = 0;
+                    }
+                }
+            }
+        }
+        if (!lines.isEmpty() || runs.isEmpty()) {
+            runs.add(writeRun(lines));
+        }
+        return runs;
+    }
+
+    private File writeRun(List<String> lines) throws IOException {
+        Collections.sort(lines);
+        File run = File.createTempFile("run", ".nt", tmpDir);
+        try (Writer writer = openWriter(run)) {
+            String previous = null;
+            for (String line : lines) {
+                if (!line.equals(previous)) {
+                    writer.write(line);
+                    writer.write('\n');
+                    previous = line;
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * K-way merge of sorted runs, the runs are deleted once merged
+     * @return The number of distinct lines written
+     */
+    private long mergeRuns(List<File> runs, File output) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>();
+        long written = 0;
+        try (Writer writer = openWriter(output)) {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            String previous = null;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (!reader.current.equals(previous)) {
+                    writer.write(reader.current);
+                    writer.write('\n');
+                    previous = reader.current;
+                    written++;
+                }
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        return written;
+    }
+
+    private static BufferedReader openReader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static Writer openWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        private BufferedReader reader;
+        private String current;
+
+        RunReader(File run) throws IOException {
+            reader = openReader(run);
+        }
+
+        boolean advance() throws IOException {
+            current = reader.readLine();
+            return current != null;
+        }
+
+        void close() throws IOException {
+            reader.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package it.polito.nexa.pc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal parser for the command line of the generators: positional arguments
+ * followed by optional "--name value" pairs or "--flag" switches.
+ */
+public class CommandLineOptions {
+
+    private List<String> positional = new ArrayList<>();
+    private Map<String, String> options = new HashMap<>();
+
+    public CommandLineOptions(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                String name = arg.substring(2);
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                    options.put(name, args[i + 1]);
+                    i += 2;
+                } else {
+                    options.put(name, "");
+                    i++;
+                }
+            } else {
+                positional.add(arg);
+                i++;
+            }
+        }
+    }
+
+    public List<String> getPositional() {
+        return positional;
+    }
+
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.equals("") ? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+}
@@ -0,0 +1,162 @@
+package it.polito.nexa.pc;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Statement;
+import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.riot.out.CharSpace;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Store made only to deduplicate the statements of a chunk before writing them as N-Triples.
+ *
+ * Every node is formatted once as an N-Triples term and replaced by an int id; a triple is
+ * three ids in a primitive array and the set of triples is an open-addressing table of
+ * indexes into that array. Nothing is indexed for querying, so a triple costs about 20 bytes
+ * plus its share of the dictionary, instead of the three indexes of a GraphMem.
+ * Triples are written in insertion order.
+ */
+public class DedupTriplesStore implements TriplesStore {
+
+    private NodeFormatter formatter = new NodeFormatterNT(CharSpace.UTF8);
+    private IndentedLineBuffer buffer = new IndentedLineBuffer();
+
+    // Dictionary: id -> N-Triples term, and open-addressing table of (id + 1)
+    private String[] terms = new String[1024];
+    private int termCount = 0;
+    private int[] termTable = new int[2048];
+
+    // Triples: three ids each, in insertion order, and open-addressing table of (index + 1)
+    private int[] triples = new int[3 * 1024];
+    private int tripleCount = 0;
+    private int[] tripleTable = new int[2048];
+
+    @Override
+    public void add(List<Statement> statementList) {
+        for (Statement statement : statementList) {
+            add(statement.asTriple());
+        }
+    }
+
+    public void add(Triple triple) {
+        int s = termId(triple.getSubject());
+        int p = termId(triple.getPredicate());
+        int o = termId(triple.getObject());
+
+        int mask = tripleTable.length - 1;
+        int i = tripleHash(s, p, o) & mask;
+        while (tripleTable[i] != 0) {
+            int t = 3 * (tripleTable[i] - 1);
+            if (triples[t] == s && triples[t + 1] == p && triples[t + 2] == o) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (3 * tripleCount + 3 > triples.length) {
+            triples = Arrays.copyOf(triples, triples.length * 2);
+        }
+        triples[3 * tripleCount] = s;
+        triples[3 * tripleCount + 1] = p;
+        triples[3 * tripleCount + 2] = o;
+        tripleCount++;
+        tripleTable[i] = tripleCount;
+        if (tripleCount * 2 > tripleTable.length) {
+            rehashTriples();
+        }
+    }
+
+    @Override
+    public long size() {
+        return tripleCount;
+    }
+
+    @Override
+    public void writeNTriples(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        for (int t = 0; t < 3 * tripleCount; t += 3) {
+            writer.write(terms[triples[t]]);
+            writer.write(' ');
+            writer.write(terms[triples[t + 1]]);
+            writer.write(' ');
+            writer.write(terms[triples[t + 2]]);
+            writer.write(" .\n");
+        }
+        writer.flush();
+    }
+
+    private int termId(Node node) {
+        buffer.clear();
+        formatter.format(buffer, node);
+        String term = buffer.asString();
+
+        int mask = termTable.length - 1;
+        int i = mix(term.hashCode()) & mask;
+        while (termTable[i] != 0) {
+            int id = termTable[i] - 1;
+            if (terms[id].equals(term)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (termCount == terms.length) {
+            terms = Arrays.copyOf(terms, terms.length * 2);
+        }
+        int id = termCount++;
+        terms[id] = term;
+        termTable[i] = id + 1;
+        if (termCount * 2 > termTable.length) {
+            rehashTerms();
+        }
+        return id;
+    }
+
+    private void rehashTerms() {
+        termTable = new int[termTable.length * 2];
+        int mask = termTable.length - 1;
+        for (int id = 0; id < termCount; id++) {
+            int i = mix(terms[id].hashCode()) & mask;
+            while (termTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            termTable[i] = id + 1;
+        }
+    }
+
+    private void rehashTriples() {
+        tripleTable = new int[tripleTable.length * 2];
+        int mask = tripleTable.length - 1;
+        for (int n = 0; n < tripleCount; n++) {
+            int t = 3 * n;
+            int i = tripleHash(triples[t], triples[t + 1], triples[t + 2]) & mask;
+            while (tripleTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            tripleTable[i] = n + 1;
+        }
+    }
+
+    private static int tripleHash(int s, int p, int o) {
+        return mix(31 * (31 * s + p) + o);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
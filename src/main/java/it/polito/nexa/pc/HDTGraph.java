@@ -0,0 +1,139 @@
+package it.polito.nexa.pc;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+import org.rdfhdt.hdt.exceptions.NotFoundException;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.triples.IteratorTripleString;
+import org.rdfhdt.hdt.triples.TripleString;
+import org.rdfhdt.hdt.util.string.ReplazableString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Read-only Jena graph over a HDT file. The triple patterns are answered by the HDT indexes,
+ * the nodes are converted from and to the strings of the HDT dictionary: plain URIs and
+ * literals quoted as in N-Triples, but with their lexical form unescaped (the HDT parser
+ * unescapes it when the file is built), stored as UTF-8 bytes.
+ */
+public class HDTGraph extends GraphBase {
+
+    private HDT hdt;
+
+    public HDTGraph(HDT hdt) {
+        this.hdt = hdt;
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+        final IteratorTripleString results;
+        try {
+            results = hdt.search(toHDT(m.getMatchSubject()), toHDT(m.getMatchPredicate()), toHDT(m.getMatchObject()));
+        } catch (NotFoundException e) {
+            return NullIterator.instance();
+        }
+        return WrappedIterator.create(new Iterator<Triple>() {
+            @Override
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            @Override
+            public Triple next() {
+                TripleString ts = results.next();
+                return Triple.create(toNode(ts.getSubject()), toNode(ts.getPredicate()), toNode(ts.getObject()));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("HDT graphs are read-only");
+            }
+        });
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return (int) Math.min(Integer.MAX_VALUE, hdt.getTriples().getNumberOfElements());
+    }
+
+    @Override
+    public void close() {
+        try {
+            hdt.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        super.close();
+    }
+
+    private static CharSequence toHDT(Node node) {
+        if (node == null || node == Node.ANY) {
+            return "";
+        }
+        String term;
+        if (node.isLiteral()) {
+            term = "\"" + node.getLiteralLexicalForm() + "\"";
+            if (!node.getLiteralLanguage().equals("")) {
+                term += "@" + node.getLiteralLanguage();
+            } else if (node.getLiteralDatatypeURI() != null) {
+                term += "^^<" + node.getLiteralDatatypeURI() + ">";
+            }
+        } else {
+            term = node.toString();
+        }
+        return encode(term);
+    }
+
+    /**
+     * The term as the dictionary stores it, its UTF-8 bytes. The dictionary compares the
+     * characters of a term with its stored bytes sign-extended, so a String with non-ASCII
+     * characters would never be found: a ReplazableString holding the bytes is compared
+     * byte by byte.
+     */
+    private static CharSequence encode(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) > 127) {
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                ReplazableString encoded = new ReplazableString();
+                encoded.append(bytes, 0, bytes.length);
+                return encoded;
+            }
+        }
+        return term;
+    }
+
+    /**
+     * The node of a dictionary string, whose lexical form is already unescaped: it lies between
+     * the first and the last quote, and may itself contain quotes and backslashes
+     */
+    private static Node toNode(CharSequence value) {
+        String s = value.toString();
+        if (!s.startsWith("\"")) {
+            return s.startsWith("_:") ? NodeFactory.createAnon(new AnonId(s.substring(2))) : NodeFactory.createURI(s);
+        }
+        int end = s.lastIndexOf('"');
+        String lexical = s.substring(1, end);
+        String suffix = s.substring(end + 1);
+        if (suffix.startsWith("@")) {
+            return NodeFactory.createLiteral(lexical, suffix.substring(1), false);
+        }
+        if (suffix.startsWith("^^")) {
+            String datatype = suffix.substring(2);
+            if (datatype.startsWith("<")) {
+                datatype = datatype.substring(1, datatype.length() - 1);
+            }
+            return NodeFactory.createLiteral(lexical, TypeMapper.getInstance().getSafeTypeByName(datatype));
+        }
+        return NodeFactory.createLiteral(lexical);
+    }
+}
@@ -0,0 +1,206 @@
+package it.polito.nexa.pc;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.riot.RDFDataMgr;
+import org.rdfhdt.hdt.enums.RDFNotation;
+import org.rdfhdt.hdt.exceptions.ParserException;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+import org.rdfhdt.hdt.options.HDTSpecification;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Publish the N-Triples chunks as a single HDT (Header-Dictionary-Triples) file: dictionary
+ * encoded, compressed and self-indexed, so that it can be queried read-only straight away
+ * through a Jena graph.
+ *
+ * The chunks are first merged and deduplicated by ChunksMerger within a memory budget, then
+ * the HDT is built with the two-pass loader, which reads the file twice instead of keeping
+ * all the triples in memory.
+ */
+public class HDTPublisher {
+
+    private static String BASE_URI = "http://public-contracts.nexacenter.org/id/";
+
+    public static void main(String[] args) throws IOException, ParserException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() < 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: HDTPublisher <output.hdt> <chunk file or directory>... [--memory <MB>] [--compare]");
+            System.exit(1);
+        }
+
+        String output = options.getPositional().get(0);
+        List<File> chunks = ChunksMerger.listChunks(options.getPositional().subList(1, options.getPositional().size()));
+        publishHDT(chunks, output, options.getLong("memory", 256) * 1024 * 1024);
+        if (options.has("compare")) {
+            compareWithChunks(output, chunks, 1000);
+        }
+    }
+
+    /**
+     * Build the HDT file and its index from the given chunks
+     */
+    public static void publishHDT(List<File> chunks, String output, long memoryBudget) throws IOException, ParserException {
+        long startTime = System.currentTimeMillis();
+        File hdtFile = new File(output);
+        if (hdtFile.getAbsoluteFile().getParentFile() != null) {
+            hdtFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+
+        File merged = new File(output + ".merged.nt");
+        ChunksMerger merger = new ChunksMerger(memoryBudget, new File(output + ".merge-tmp"));
+        merger.merge(chunks, merged);
+        System.out.println("Merged " + merger.getInputLines() + " triples into " + merger.getOutputLines() + " distinct triples");
+        // The HDT parser reads the file with the default charset: with any other than UTF-8 the
+        // non-ASCII characters are escaped, so that the dictionary still holds their UTF-8 bytes
+        if (!Charset.defaultCharset().equals(StandardCharsets.UTF_8)) {
+            File escaped = new File(output + ".escaped.nt");
+            escapeNonAscii(merged, escaped);
+            Files.move(escaped.toPath(), merged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        HDTSpecification spec = new HDTSpecification();
+        spec.set("loader.type", "two-pass");
+        HDT hdt = HDTManager.generateHDT(merged.getAbsolutePath(), BASE_URI, RDFNotation.NTRIPLES, spec, null);
+        try {
+            hdt.saveToHDT(output, null);
+        } finally {
+            hdt.close();
+        }
+        merged.delete();
+
+        // Create the additional indexes (output.index) used by the triple pattern lookups
+        HDTManager.mapIndexedHDT(output, null).close();
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("HDT built in " + (endTime - startTime) / 1000 + " s, size " + hdtFile.length() / 1024
+                + " KB, N-Triples chunks " + totalSize(chunks) / 1024 + " KB");
+    }
+
+    /**
+     * Open a HDT file as a Jena model, the file is memory mapped and not loaded in the heap
+     */
+    public static Model openHDT(String hdtFile) throws IOException {
+        HDT hdt = HDTManager.mapIndexedHDT(hdtFile, null);
+        return ModelFactory.createModelForGraph(new HDTGraph(hdt));
+    }
+
+    /**
+     * Report open time and subject lookup latency of the HDT file compared with loading the chunks in memory
+     */
+    public static void compareWithChunks(String hdtFile, List<File> chunks, int lookups) throws IOException {
+        long start = System.nanoTime();
+        Model hdtModel = openHDT(hdtFile);
+        long hdtOpen = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Model memModel = ModelFactory.createDefaultModel();
+        for (File chunk : chunks) {
+            RDFDataMgr.read(memModel, chunk.getAbsolutePath());
+        }
+        long ntLoad = System.nanoTime() - start;
+
+        List<Node> subjects = sampleSubjects(chunks, lookups);
+        double[] hdtLookup = lookupLatency(hdtModel.getGraph(), subjects);
+        double[] memLookup = lookupLatency(memModel.getGraph(), subjects);
+
+        System.out.println(String.format("HDT: open %d ms, lookup %.1f us/pattern, %.0f triples found",
+                hdtOpen / 1000000, hdtLookup[0], hdtLookup[1]));
+        System.out.println(String.format("N-Triples: load %d ms, lookup %.1f us/pattern, %.0f triples found",
+                ntLoad / 1000000, memLookup[0], memLookup[1]));
+        hdtModel.close();
+    }
+
+    /**
+     * @return The microseconds per pattern and the number of triples found, which should be
+     * the same for both graphs
+     */
+    private static double[] lookupLatency(Graph graph, List<Node> subjects) {
+        if (subjects.isEmpty()) {
+            return new double[] {0, 0};
+        }
+        long found = 0;
+        long start = System.nanoTime();
+        for (Node subject : subjects) {
+            ExtendedIterator<Triple> it = graph.find(subject, Node.ANY, Node.ANY);
+            while (it.hasNext()) {
+                it.next();
+                found++;
+            }
+            it.close();
+        }
+        return new double[] {(System.nanoTime() - start) / 1000.0 / subjects.size(), found};
+    }
+
+    private static List<Node> sampleSubjects(List<File> chunks, int max) throws IOException {
+        Set<String> uris = new LinkedHashSet<>();
+        for (File chunk : chunks) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(chunk), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null && uris.size() < max) {
+                    if (line.startsWith("<")) {
+                        uris.add(line.substring(1, line.indexOf('>')));
+                    }
+                }
+            }
+        }
+        List<Node> subjects = new ArrayList<>();
+        for (String uri : uris) {
+            subjects.add(NodeFactory.createURI(uri));
+        }
+        return subjects;
+    }
+
+    /**
+     * Copy an N-Triples file replacing every non-ASCII character with its N-Triples escape
+     */
+    private static void escapeNonAscii(File input, File output) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8), 1 << 16);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.US_ASCII), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (int i = 0; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (c > 127) {
+                        writer.write(String.format("\\u%04X", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                }
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static long totalSize(List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+}
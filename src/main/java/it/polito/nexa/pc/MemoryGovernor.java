@@ -0,0 +1,179 @@
+package it.polito.nexa.pc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Adapts the pipeline to the occupancy of the old generation, so that a run on a fixed -Xmx
+ * slows down or publishes its chunk early instead of thrashing in full collections and dying
+ * with an OutOfMemoryError when a burst of large files arrives near the end of a chunk.
+ *
+ * The old generation pool is given a usage threshold and a collection usage threshold at the
+ * high level. Crossing the usage threshold is an early warning (the pool may also hold garbage
+ * not yet collected): the number of files triplified in parallel is halved, down to one. A
+ * collection that leaves the pool above the threshold means that the live data itself is too
+ * large: since most of it is the chunk being accumulated, an early flush is requested. Above the
+ * critical level the flush is requested without waiting for a collection, because collectors
+ * such as G1 may not report the old generation until a full collection. When the occupancy
+ * falls below the high level the workers are restored one at a time.
+ */
+public class MemoryGovernor {
+
+    // Files between two changes of the number of workers
+    private static int ADJUST_INTERVAL = 64;
+
+    private MemoryPoolMXBean pool;
+    private long max;
+    private double high;
+    private double critical;
+    private int maxWorkers;
+    private int minFlushFiles;
+
+    private int allowedWorkers;
+    private long collectionThresholdCount;
+    private boolean flushRequested = false;
+    private int filesSinceAdjustment = 0;
+    private String reason = "";
+
+    private double peakOccupancy = 0;
+    private long throttles = 0;
+    private long restores = 0;
+    private long flushes = 0;
+    private long skippedFlushes = 0;
+
+    /**
+     * @param high Fraction of the old generation above which the workers are reduced
+     * @param critical Fraction of the old generation above which the chunk is published early
+     * @param maxWorkers Files triplified in parallel without memory pressure
+     * @param minFlushFiles Files that a chunk must hold before it can be published early
+     */
+    public MemoryGovernor(double high, double critical, int maxWorkers, int minFlushFiles) {
+        this.high = high;
+        this.critical = critical;
+        this.maxWorkers = maxWorkers;
+        this.minFlushFiles = minFlushFiles;
+        this.allowedWorkers = maxWorkers;
+        this.pool = oldGeneration();
+        if (pool != null) {
+            max = pool.getUsage().getMax() > 0 ? pool.getUsage().getMax() : Runtime.getRuntime().maxMemory();
+            pool.setUsageThreshold((long) (max * high));
+            pool.setCollectionUsageThreshold((long) (max * high));
+            collectionThresholdCount = pool.getCollectionUsageThresholdCount();
+        }
+    }
+
+    /**
+     * @return The governor configured by --memory-high and --memory-critical (percentages of the
+     * old generation, default 70 and 90), or null with --no-memory-governor
+     */
+    public static MemoryGovernor fromOptions(CommandLineOptions options, int maxWorkers, int chunkSize) {
+        if (options.has("no-memory-governor")) {
+            return null;
+        }
+        return new MemoryGovernor(options.getInt("memory-high", 70) / 100.0, options.getInt("memory-critical", 90) / 100.0,
+                maxWorkers, Math.max(100, chunkSize / 20));
+    }
+
+    /**
+     * The heap pool that supports both thresholds is the old (tenured) generation
+     */
+    private static MemoryPoolMXBean oldGeneration() {
+        MemoryPoolMXBean result = null;
+        for (MemoryPoolMXBean candidate : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (candidate.getType() == MemoryType.HEAP && candidate.isUsageThresholdSupported()
+                    && candidate.isCollectionUsageThresholdSupported()
+                    && (result == null || candidate.getUsage().getMax() > result.getUsage().getMax())) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check the memory after a file has been added to the chunk
+     */
+    public synchronized void update() {
+        if (pool == null) {
+            return;
+        }
+        double occupancy = (double) pool.getUsage().getUsed() / max;
+        peakOccupancy = Math.max(peakOccupancy, occupancy);
+        long count = pool.getCollectionUsageThresholdCount();
+        if (count > collectionThresholdCount) {
+            collectionThresholdCount = count;
+            MemoryUsage afterCollection = pool.getCollectionUsage();
+            request(String.format("%.0f%% of the old generation live after a collection",
+                    100.0 * afterCollection.getUsed() / max));
+        } else if (occupancy >= critical) {
+            request(String.format("old generation at %.0f%%", 100 * occupancy));
+        }
+        filesSinceAdjustment++;
+        if (pool.isUsageThresholdExceeded() || occupancy >= high) {
+            if (allowedWorkers > 1 && (filesSinceAdjustment >= ADJUST_INTERVAL || allowedWorkers == maxWorkers)) {
+                allowedWorkers = Math.max(1, allowedWorkers / 2);
+                filesSinceAdjustment = 0;
+                throttles++;
+                System.out.println(String.format("Memory governor: old generation at %.0f%%, %d workers", 100 * occupancy, allowedWorkers));
+            }
+        } else if (allowedWorkers < maxWorkers && filesSinceAdjustment >= ADJUST_INTERVAL) {
+            allowedWorkers++;
+            filesSinceAdjustment = 0;
+            restores++;
+        }
+    }
+
+    private void request(String why) {
+        if (!flushRequested) {
+            flushRequested = true;
+            reason = why;
+            allowedWorkers = 1;
+            filesSinceAdjustment = 0;
+        }
+    }
+
+    /**
+     * @param chunkFiles Files in the chunk being accumulated
+     * @return True if the chunk should be published now; the request is then considered served
+     */
+    public synchronized boolean shouldFlush(int chunkFiles) {
+        if (!flushRequested) {
+            return false;
+        }
+        flushRequested = false;
+        if (chunkFiles < minFlushFiles) {
+            // The memory is held by something else than the chunk
+            skippedFlushes++;
+            return false;
+        }
+        flushes++;
+        System.out.println("Memory governor: " + reason + ", early publication of a chunk of " + chunkFiles + " files");
+        return true;
+    }
+
+    /**
+     * @return The number of files that can be triplified in parallel
+     */
+    public synchronized int getAllowedWorkers() {
+        return allowedWorkers;
+    }
+
+    public synchronized String metrics() {
+        return "memory_old_generation_occupancy " + (pool != null ? String.format("%.3f", (double) pool.getUsage().getUsed() / max) : "NaN") + "\n"
+                + "memory_old_generation_peak_occupancy " + String.format("%.3f", peakOccupancy) + "\n"
+                + "memory_allowed_workers " + allowedWorkers + "\n"
+                + "memory_throttles " + throttles + "\n"
+                + "memory_worker_restores " + restores + "\n"
+                + "memory_early_flushes " + flushes + "\n"
+                + "memory_skipped_flushes " + skippedFlushes + "\n";
+    }
+
+    public synchronized String summary() {
+        if (pool == null) {
+            return "Memory governor: no old generation pool with usage thresholds";
+        }
+        return String.format("Memory governor (%s, %d MB): peak %.0f%%, %d early flushes (%d skipped), workers reduced %d times and restored %d times",
+                pool.getName(), max / (1024 * 1024), 100 * peakOccupancy, flushes, skippedFlushes, throttles, restores);
+    }
+}
@@ -0,0 +1,40 @@
+package it.polito.nexa.pc;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Statement;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Store backed by a Jena Model: a full in-memory graph, indexed by subject, predicate and object.
+ */
+public class ModelTriplesStore implements TriplesStore {
+
+    private Model model;
+
+    public ModelTriplesStore(Model model) {
+        this.model = model;
+    }
+
+    @Override
+    public void add(List<Statement> statementList) {
+        model.add(statementList);
+    }
+
+    @Override
+    public long size() {
+        return model.size();
+    }
+
+    @Override
+    public void writeNTriples(OutputStream out) {
+        RDFDataMgr.write(out, model, RDFFormat.NTRIPLES);
+    }
+
+    public Model getModel() {
+        return model;
+    }
+}
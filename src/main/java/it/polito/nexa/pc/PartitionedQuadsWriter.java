@@ -0,0 +1,178 @@
+package it.polito.nexa.pc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Statement;
+import it.polito.nexa.pc.util.Hashing;
+import it.polito.nexa.pc.util.LongHashSet;
+import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.riot.out.CharSpace;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the statements of each JSON file as N-Quads in a named graph chosen by the reference
+ * year and/or the proposing structure (contractingAuthorityId) of the file. Every partition has
+ * its own file, so a store can drop and reload a single graph.
+ *
+ * Statements are streamed, with one writer per partition; at most maxOpenFiles writers are kept
+ * open, the least recently used one is closed when the cap is reached and reopened in append
+ * mode when its partition is met again.
+ *
+ * Every file repeats the vocabulary and the descriptions of the entities it mentions, so a quad is
+ * written only the first time it appears in its partition while the partition is open: each open
+ * partition keeps the 64-bit hashes of the triples already written (8 to 16 bytes per distinct
+ * quad), and forgets them when its writer is closed, so that the memory is bounded by the open
+ * partitions. A partition reopened later may repeat some quads, which a store loads only once.
+ */
+public class PartitionedQuadsWriter {
+
+    private static String GRAPH_BASE_URI = "http://public-contracts.nexacenter.org/id/graph/";
+
+    private File outputDir;
+    private boolean byYear;
+    private boolean byAuthority;
+    private final int maxOpenFiles;
+
+    private NodeFormatter formatter = new NodeFormatterNT(CharSpace.UTF8);
+    private IndentedLineBuffer buffer = new IndentedLineBuffer();
+    private Map<String, Writer> writers;
+    private Set<String> partitions = new HashSet<>();
+    private Map<String, LongHashSet> written = new HashMap<>();
+    private long quads = 0;
+    private long duplicates = 0;
+    private long reopened = 0;
+
+    /**
+     * @param partitioning "year", "authority" or "year-authority"
+     */
+    public PartitionedQuadsWriter(File outputDir, String partitioning, int maxOpenFiles) {
+        this.outputDir = outputDir;
+        this.byYear = partitioning.contains("year");
+        this.byAuthority = partitioning.contains("authority");
+        if (!byYear && !byAuthority) {
+            throw new IllegalArgumentException("Unknown partitioning: " + partitioning);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        this.writers = new LinkedHashMap<>(16, 0.75f, true);
+        outputDir.mkdirs();
+    }
+
+    /**
+     * Partition of a parsed ANAC JSON, "unknown" for the missing values
+     */
+    public String partitionOf(JsonNode rootNode) {
+        String year = "unknown";
+        String authority = "unknown";
+        if (rootNode != null) {
+            year = clean(getValue("annoRiferimento", rootNode));
+            authority = clean(getValue("cfStrutturaProponenteANAC", rootNode));
+        }
+        if (byYear && byAuthority) {
+            return year + "/" + authority;
+        }
+        return byYear ? year : authority;
+    }
+
+    public void write(String partition, List<Statement> statements) throws IOException {
+        Writer writer = writer(partition);
+        String graph = "<" + GRAPH_BASE_URI + partition + ">";
+        LongHashSet seen = written.get(partition);
+        if (seen == null) {
+            seen = new LongHashSet();
+            written.put(partition, seen);
+        }
+        for (Statement statement : statements) {
+            Triple triple = statement.asTriple();
+            buffer.clear();
+            formatter.format(buffer, triple.getSubject());
+            buffer.append(' ');
+            formatter.format(buffer, triple.getPredicate());
+            buffer.append(' ');
+            formatter.format(buffer, triple.getObject());
+            if (!seen.add(Hashing.hash64(buffer.getBuffer()))) {
+                duplicates++;
+                continue;
+            }
+            buffer.append(' ');
+            buffer.append(graph);
+            buffer.append(" .\n");
+            writer.write(buffer.asString());
+            quads++;
+        }
+    }
+
+    public void close() throws IOException {
+        for (Writer writer : writers.values()) {
+            writer.close();
+        }
+        writers.clear();
+        written.clear();
+    }
+
+    public int getPartitions() {
+        return partitions.size();
+    }
+
+    public long getQuads() {
+        return quads;
+    }
+
+    /**
+     * @return Statements not written because their open partition already had them
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getReopenedFiles() {
+        return reopened;
+    }
+
+    private Writer writer(String partition) throws IOException {
+        Writer writer = writers.get(partition);
+        if (writer != null) {
+            return writer;
+        }
+        if (writers.size() >= maxOpenFiles) {
+            Iterator<Map.Entry<String, Writer>> eldest = writers.entrySet().iterator();
+            Map.Entry<String, Writer> entry = eldest.next();
+            entry.getValue().close();
+            written.remove(entry.getKey());
+            eldest.remove();
+        }
+        File file = new File(outputDir, partition.replace('/', '_') + ".nq");
+        // The first time in a run the file is truncated, then it is only appended to
+        boolean append = !partitions.add(partition);
+        if (append) {
+            reopened++;
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8), 64 * 1024);
+        writers.put(partition, writer);
+        return writer;
+    }
+
+    private static String clean(String value) {
+        value = value.replaceAll("[^A-Za-z0-9_-]", "");
+        return value.equals("") ? "unknown" : value;
+    }
+
+    private static String getValue(String string, JsonNode record) {
+        return record.get(string) != null ? record.get(string).asText() : "";
+    }
+}
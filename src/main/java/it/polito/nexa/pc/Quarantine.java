@@ -0,0 +1,241 @@
+package it.polito.nexa.pc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polito.nexa.pc.util.ErrorLog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Isolates the input files that cannot be read, parsed or triplified, so that a corrupt region of
+ * the corpus does not slow down the healthy files.
+ *
+ * A failed file contributes no statements. It is copied under the quarantine directory, with its
+ * path relative to the input directory, and described by a line of manifest.jsonl (file, stage,
+ * error, message, first stack frame, size, elapsed time); both are written on a background thread.
+ * The failures are reported through an ErrorLog, which prints a bounded number of them per second
+ * without making the workers wait for the console.
+ *
+ * With a time budget every file is processed on a budget thread and abandoned when it exceeds the
+ * budget: the parsers do not check for interruption, so the thread is left to finish in the
+ * background, but its result is discarded and the run goes on with the next file. The budget
+ * threads are bounded: when too many abandoned files are still running, the next file waits for
+ * one of them to finish before its budget starts.
+ */
+public class Quarantine {
+
+    private File inputDir;
+    private File dir;
+    private long budgetMillis;
+    private ErrorLog log;
+
+    private ExecutorService writer;
+    private ExecutorService budgetWorkers;
+    private Semaphore budgetThreads;
+    private Writer manifest;
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private AtomicLong parseFailures = new AtomicLong();
+    private AtomicLong triplifyFailures = new AtomicLong();
+    private AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param budgetMillis Time allowed to read, parse and triplify a file, 0 for no limit
+     * @param threads Files processed at once within the budget, abandoned ones included
+     * @param logsPerSecond Failures printed per second
+     */
+    public Quarantine(File inputDir, File dir, long budgetMillis, int threads, int logsPerSecond) {
+        this.inputDir = inputDir.getAbsoluteFile().toPath().normalize().toFile();
+        this.dir = dir;
+        this.budgetMillis = budgetMillis;
+        this.log = new ErrorLog(logsPerSecond);
+        this.writer = Executors.newSingleThreadExecutor(daemonThreads("quarantine"));
+        if (budgetMillis > 0) {
+            this.budgetWorkers = Executors.newFixedThreadPool(threads, daemonThreads("file-budget"));
+            this.budgetThreads = new Semaphore(threads);
+        }
+    }
+
+    /**
+     * @return null with --no-quarantine
+     */
+    public static Quarantine fromOptions(CommandLineOptions options, String inputDir, String outputDir) {
+        if (options.has("no-quarantine")) {
+            return null;
+        }
+        // The workers of --threads and the main loop, plus the files abandoned and still running
+        int threads = options.getInt("threads", 1) + 1 + options.getInt("max-abandoned-files", 2);
+        return new Quarantine(new File(inputDir), new File(options.get("quarantine", outputDir + "/quarantine")),
+                options.getLong("file-budget-ms", 0), threads, options.getInt("error-log-rate", 10));
+    }
+
+    /**
+     * Process a file within the time budget
+     * @return The result of the task, or null if it failed or exceeded the budget
+     */
+    public <T> T run(String path, final Callable<T> task) {
+        long start = System.currentTimeMillis();
+        if (budgetWorkers == null) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                add(path, "triplify", e, System.currentTimeMillis() - start);
+                return null;
+            }
+        }
+        try {
+            budgetThreads.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        start = System.currentTimeMillis();
+        // The permit is released by the task, or here if it is cancelled before it starts
+        final AtomicBoolean started = new AtomicBoolean();
+        Future<T> future = budgetWorkers.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    return task.call();
+                } finally {
+                    budgetThreads.release();
+                }
+            }
+        });
+        try {
+            return future.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (started.compareAndSet(false, true)) {
+                budgetThreads.release();
+            }
+            add(path, "timeout", new TimeoutException("Exceeded the budget of " + budgetMillis + " ms"),
+                    System.currentTimeMillis() - start);
+        } catch (ExecutionException e) {
+            add(path, "triplify", e.getCause(), System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Quarantine a file
+     * @param stage "parse", "triplify" or "timeout"
+     */
+    public void add(final String path, final String stage, final Throwable error, final long elapsedMillis) {
+        if (stage.equals("parse")) {
+            parseFailures.incrementAndGet();
+        } else if (stage.equals("timeout")) {
+            timeouts.incrementAndGet();
+        } else {
+            triplifyFailures.incrementAndGet();
+        }
+        log.log("Quarantined " + path + " (" + stage + "): " + error);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(path, stage, error, elapsedMillis);
+            }
+        });
+    }
+
+    public long getFailures() {
+        return parseFailures.get() + triplifyFailures.get() + timeouts.get();
+    }
+
+    public String summary() {
+        return String.format("%d files quarantined in %s: %d not parsed, %d not triplified, %d over the time budget",
+                getFailures(), dir, parseFailures.get(), triplifyFailures.get(), timeouts.get());
+    }
+
+    /**
+     * Write the pending manifest lines and copies and print the pending messages
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (budgetWorkers != null) {
+            budgetWorkers.shutdownNow();
+        }
+        if (manifest != null) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                System.out.println("Error closing the quarantine manifest: " + e.getMessage());
+            }
+        }
+        log.close();
+    }
+
+    private void write(String path, String stage, Throwable error, long elapsedMillis) {
+        File file = new File(path);
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("file", path);
+        entry.put("stage", stage);
+        entry.put("error", error.getClass().getName());
+        entry.put("message", error.getMessage());
+        entry.put("at", error.getStackTrace().length > 0 ? error.getStackTrace()[0].toString() : null);
+        entry.put("bytes", file.length());
+        entry.put("elapsedMs", elapsedMillis);
+        entry.put("time", System.currentTimeMillis());
+        try {
+            if (manifest == null) {
+                dir.mkdirs();
+                manifest = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(new File(dir, "manifest.jsonl"), true), StandardCharsets.UTF_8));
+            }
+            manifest.write(mapper.writeValueAsString(entry));
+            manifest.write('\n');
+            manifest.flush();
+            if (file.isFile()) {
+                Path absolute = file.getAbsoluteFile().toPath().normalize();
+                Path target = dir.toPath().resolve(absolute.startsWith(inputDir.toPath())
+                        ? inputDir.toPath().relativize(absolute) : file.toPath().getFileName());
+                target.getParent().toFile().mkdirs();
+                Files.copy(absolute, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.log("Error quarantining " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package it.polito.nexa.pc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compare two releases of the graph and write the difference as an RDF Patch
+ * (https://afs.github.io/rdf-patch/): a transaction with a "D" row for every triple of the
+ * old release that is not in the new one and an "A" row for every new triple, so that a
+ * store can be updated instead of reloaded.
+ *
+ * A release is either the output directory (or any set of chunks) of TriplesGenerator, which is
+ * first sorted and deduplicated with ChunksMerger within the memory budget, or a file already
+ * merged by ChunksMerger (--sorted). The two sorted files are then compared in a single
+ * streaming pass that holds one line of each, so the diff itself needs constant memory.
+ * Triples are compared as N-Triples lines, hence blank nodes are never matched across releases.
+ */
+public class ReleaseDiff {
+
+    private long deletions = 0;
+    private long additions = 0;
+    private long unchanged = 0;
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 3) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: ReleaseDiff <old release> <new release> <patch file> [--sorted]"
+                    + " [--memory <MB>] [--tmp <dir>] [--previous <patch id>]");
+            System.exit(1);
+        }
+
+        long startTime = System.currentTimeMillis();
+        File patch = new File(options.getPositional().get(2));
+        File tmpDir = new File(options.get("tmp", patch.getAbsoluteFile().getParent() + "/diff-tmp"));
+        long memoryBudget = options.getLong("memory", 256) * 1024 * 1024;
+
+        File oldRelease = new File(options.getPositional().get(0));
+        File newRelease = new File(options.getPositional().get(1));
+        if (!options.has("sorted")) {
+            oldRelease = sort(oldRelease, new File(tmpDir, "old.nt"), memoryBudget, tmpDir);
+            newRelease = sort(newRelease, new File(tmpDir, "new.nt"), memoryBudget, tmpDir);
+        }
+
+        String id = "uuid:" + UUID.randomUUID();
+        ReleaseDiff diff = new ReleaseDiff();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(patch), StandardCharsets.UTF_8), 1 << 16)) {
+            diff.diff(oldRelease, newRelease, writer, id, options.get("previous", null));
+        } finally {
+            if (!options.has("sorted")) {
+                oldRelease.delete();
+                newRelease.delete();
+                tmpDir.delete();
+            }
+        }
+
+        System.out.println("Patch " + id + ": " + diff.getDeletions() + " triples deleted, " + diff.getAdditions()
+                + " added, " + diff.getUnchanged() + " unchanged");
+        System.out.println("Time in seconds: " + (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    /**
+     * Merge the chunks of a release into a sorted file without duplicates
+     */
+    private static File sort(File release, File output, long memoryBudget, File tmpDir) throws IOException {
+        List<File> chunks = ChunksMerger.listChunks(Collections.singletonList(release.getPath()));
+        System.out.println("Sorting " + chunks.size() + " chunks of " + release);
+        new ChunksMerger(memoryBudget, new File(tmpDir, "merge-tmp")).merge(chunks, output);
+        return output;
+    }
+
+    /**
+     * Write the patch from the old to the new release
+     * @param oldRelease N-Triples sorted as strings and without duplicates, as written by ChunksMerger
+     * @param newRelease Same as oldRelease
+     * @param id The id of the patch
+     * @param previous The id of the patch that produced the old release, or null
+     * @throws IOException If a file cannot be read or is not sorted
+     */
+    public void diff(File oldRelease, File newRelease, Writer patch, String id, String previous) throws IOException {
+        patch.write("H id <" + id + "> .\n");
+        if (previous != null) {
+            patch.write("H prev <" + previous + "> .\n");
+        }
+        patch.write("TX .\n");
+        try (SortedLines oldLines = new SortedLines(oldRelease); SortedLines newLines = new SortedLines(newRelease)) {
+            String o = oldLines.next();
+            String n = newLines.next();
+            while (o != null || n != null) {
+                int comparison = o == null ? 1 : n == null ? -1 : o.compareTo(n);
+                if (comparison < 0) {
+                    writeRow(patch, "D ", o);
+                    deletions++;
+                    o = oldLines.next();
+                } else if (comparison > 0) {
+                    writeRow(patch, "A ", n);
+                    additions++;
+                    n = newLines.next();
+                } else {
+                    unchanged++;
+                    o = oldLines.next();
+                    n = newLines.next();
+                }
+            }
+        }
+        patch.write("TC .\n");
+    }
+
+    public long getDeletions() {
+        return deletions;
+    }
+
+    public long getAdditions() {
+        return additions;
+    }
+
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    private static void writeRow(Writer patch, String operation, String triple) throws IOException {
+        patch.write(operation);
+        patch.write(triple);
+        patch.write('\n');
+    }
+
+    /**
+     * The triples of a sorted N-Triples file, skipping blank lines and comments
+     */
+    private static class SortedLines implements AutoCloseable {
+        private File file;
+        private BufferedReader reader;
+        private String previous = null;
+
+        SortedLines(File file) throws IOException {
+            this.file = file;
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        String next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && (line.isEmpty() || line.startsWith("#")));
+            if (line != null && previous != null && line.compareTo(previous) <= 0) {
+                throw new IOException(file + " is not sorted or has duplicates, merge it with ChunksMerger first");
+            }
+            previous = line;
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
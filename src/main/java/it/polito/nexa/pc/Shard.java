@@ -0,0 +1,66 @@
+package it.polito.nexa.pc;
+
+import it.polito.nexa.pc.util.Hashing;
+
+import java.io.File;
+
+/**
+ * One of the N shards of a triplification job. A file belongs to the shard selected by a
+ * stable hash of its path relative to the input directory, so independent processes given
+ * the same corpus and N split it without any coordination.
+ */
+public class Shard {
+
+    private int index;
+    private int count;
+
+    public Shard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param value "i/N", with i between 0 and N - 1
+     */
+    public static Shard parse(String value) {
+        String[] parts = value.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid shard " + value + ", expected i/N");
+        }
+        return new Shard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    public boolean owns(File inputDir, File file) {
+        return owns(relativePath(inputDir, file));
+    }
+
+    public boolean owns(String relativePath) {
+        return Long.remainderUnsigned(Hashing.hash64(relativePath), count) == index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return "shard-i-of-N", used in the names of the shard outputs
+     */
+    public String getName() {
+        return "shard-" + index + "-of-" + count;
+    }
+
+    /**
+     * Path of the file relative to the input directory, with "/" separators on every platform
+     */
+    public static String relativePath(File inputDir, File file) {
+        return inputDir.getAbsoluteFile().toPath().normalize()
+                .relativize(file.getAbsoluteFile().toPath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+}
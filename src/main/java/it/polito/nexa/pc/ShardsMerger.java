@@ -0,0 +1,149 @@
+package it.polito.nexa.pc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polito.nexa.pc.businessEntities.CompanyAggregator;
+import it.polito.nexa.pc.statistics.SpendingStatistics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Combines the outputs of a sharded run (TriplesGenerator --shard i/N): the chunks of all the
+ * shards are merged in a single sorted file without duplicates, and the business entities and
+ * spending statistics of the shards are summed before being published as in a single run.
+ *
+ * The shards are found through their manifests (shards/shard-i-of-N.json in the output
+ * directory of each shard); the merge refuses to run unless all the N shards are complete.
+ */
+public class ShardsMerger {
+
+    private static ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() < 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: ShardsMerger <outputDir> <shard outputDir or manifest>... [--memory <MB>] [--tmp <dir>]"
+                    + " [--proposing-structures <file>] [--hdt]");
+            System.exit(1);
+        }
+
+        long startTime = System.currentTimeMillis();
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd" + "_" + "HH");
+        String runName = dateFormat.format(new Date());
+        String outputDir = options.getPositional().get(0);
+        List<File> manifests = listManifests(options.getPositional().subList(1, options.getPositional().size()));
+
+        List<File> chunks = new ArrayList<>();
+        CompanyAggregator aggregator = null;
+        SpendingStatistics statistics = null;
+        boolean[] seen = null;
+        long files = 0;
+        for (File manifestFile : manifests) {
+            JsonNode manifest = JSON_MAPPER.readTree(manifestFile);
+            int shard = manifest.get("shard").asInt();
+            int shards = manifest.get("shards").asInt();
+            if (seen == null) {
+                seen = new boolean[shards];
+            }
+            if (seen.length != shards || seen[shard]) {
+                System.err.println("Unexpected manifest " + manifestFile + ": shard " + shard + "/" + shards);
+                System.exit(1);
+            }
+            seen[shard] = true;
+            files += manifest.get("files").asLong();
+
+            File shardDir = manifestFile.getAbsoluteFile().getParentFile().getParentFile();
+            for (JsonNode chunk : manifest.get("chunks")) {
+                chunks.add(new File(shardDir, chunk.asText()));
+            }
+            if (manifest.has("entities")) {
+                if (aggregator == null) {
+                    aggregator = new CompanyAggregator();
+                }
+                try (DataInputStream in = openSnapshot(new File(shardDir, manifest.get("entities").asText()))) {
+                    aggregator.mergeSnapshot(in);
+                }
+            }
+            if (manifest.has("statistics")) {
+                if (statistics == null) {
+                    statistics = new SpendingStatistics();
+                }
+                try (DataInputStream in = openSnapshot(new File(shardDir, manifest.get("statistics").asText()))) {
+                    statistics.mergeSnapshot(in);
+                }
+            }
+        }
+        if (seen == null) {
+            System.err.println("No shard manifest found");
+            System.exit(1);
+        }
+        for (int i = 0; i < seen.length; i++) {
+            if (!seen[i]) {
+                System.err.println("Shard " + i + "/" + seen.length + " is missing or not complete");
+                System.exit(1);
+            }
+        }
+        System.out.println(seen.length + " shards, " + files + " files, " + chunks.size() + " chunks to merge");
+
+        File merged = new File(outputDir + "/rdf-output/" + runName + "_rdf_merged.nt");
+        merged.getAbsoluteFile().getParentFile().mkdirs();
+        long memoryBudget = options.getLong("memory", 256) * 1024 * 1024;
+        ChunksMerger merger = new ChunksMerger(memoryBudget, new File(options.get("tmp", outputDir + "/merge-tmp")));
+        merger.merge(chunks, merged);
+        System.out.println("Read " + merger.getInputLines() + " triples, written " + merger.getOutputLines() + " distinct triples");
+
+        if (aggregator != null) {
+            TriplesGenerator.publishBusinessEntities(aggregator,
+                    options.get("proposing-structures", "download/proposingStructures.json"),
+                    outputDir, outputDir + "/rdf-output/" + runName + "_business-entities-labels.nt");
+        }
+        if (statistics != null) {
+            statistics.writeJSON(new File(outputDir + "/statistics/" + runName + "_spending.json"));
+        }
+        if (options.has("hdt")) {
+            System.out.println("Publish HDT...");
+            try {
+                HDTPublisher.publishHDT(Collections.singletonList(merged), outputDir + "/hdt-output/" + runName + "_rdf.hdt", memoryBudget);
+            } catch (Exception e) {
+                System.out.println("Error building the HDT file: " + e.getMessage());
+            }
+        }
+        System.out.println("Time in seconds: " + (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    /**
+     * Manifests given directly or found in the "shards" directory of the given output directories
+     */
+    private static List<File> listManifests(List<String> paths) {
+        List<File> manifests = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                File[] found = new File(file, "shards").listFiles((dir, name) -> name.startsWith("shard-") && name.endsWith(".json"));
+                if (found != null) {
+                    Arrays.sort(found);
+                    manifests.addAll(Arrays.asList(found));
+                }
+            } else {
+                manifests.add(file);
+            }
+        }
+        return manifests;
+    }
+
+    private static DataInputStream openSnapshot(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+}
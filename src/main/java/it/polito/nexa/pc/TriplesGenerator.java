@@ -6,7 +6,20 @@ import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.vocabulary.DCTerms;
 import com.hp.hpl.jena.vocabulary.RDF;
 import com.hp.hpl.jena.vocabulary.RDFS;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polito.nexa.pc.businessEntities.CompanyAggregator;
+import it.polito.nexa.pc.businessEntities.EntityResolver;
 import it.polito.nexa.pc.importers.DefaultJSONImporter;
+import it.polito.nexa.pc.importers.FileIndex;
+import it.polito.nexa.pc.importers.JSONTreeReader;
+import it.polito.nexa.pc.importers.SmileJSONCache;
+import it.polito.nexa.pc.mapping.MappingPlan;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+import it.polito.nexa.pc.statistics.SpendingStatistics;
+import it.polito.nexa.pc.triplifiers.EmitOnceRegistry;
 import it.polito.nexa.pc.triplifiers.PropStructLabelsTriplifier;
 import it.polito.nexa.pc.triplifiers.PublicContractsTriplifier;
 import it.polito.nexa.pc.triplifiers.SPCDataTriplifier;
@@ -16,15 +29,24 @@ import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFFormat;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by giuseppe on 19/05/15.
@@ -33,57 +55,347 @@ public class TriplesGenerator {
 
     public static void main(String[] args) throws FileNotFoundException {
 
-        if (args.length != 2) {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 2) {
             System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: TriplesGenerator <inputDir> <outputDir> [--cache <cacheDir>]"
+                    + " [--entities [--proposing-structures <file>] [--same-as [<dir>]]] [--emit-once] [--mapping [<spec>]] [--store model|dedup]"
+                    + " [--chunk-size <files>] [--hdt [--memory <MB>]] [--statistics]"
+                    + " [--year <years>] [--authority <fiscal codes>] [--cig <cig>] [--index <file>]"
+                    + " [--partition year|authority|year-authority [--max-open-files <n>]] [--shard <i>/<N>]"
+                    + " [--checkpoint [--checkpoint-interval <seconds>]] [--resume]"
+                    + " [--publish-in-flight <chunks>] [--publish-threads <n>]"
+                    + " [--quarantine <dir>] [--no-quarantine] [--file-budget-ms <ms> [--max-abandoned-files <n>]] [--error-log-rate <n>]"
+                    + " [--threads <n>] [--memory-high <percent>] [--memory-critical <percent>] [--no-memory-governor]");
+            System.err.println("With --checkpoint-interval (or an early publication of the memory governor) the chunk boundaries"
+                    + " depend on timing: --resume reproduces the statements of an uninterrupted run, not its chunks");
             System.exit(1);
         }
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd" + "_" + "HH");
         Date date = new Date();
 
-        String inputDir = args[0];
-        String outputDir = args[1];
+        String inputDir = options.getPositional().get(0);
+        String outputDir = options.getPositional().get(1);
 
         DefaultJSONImporter dji = new DefaultJSONImporter();
+        SmileJSONCache cache = options.has("cache") ? new SmileJSONCache(options.get("cache", outputDir + "/json-cache")) : null;
 
         PublicContractsTriplifier pcTriplifier = new PublicContractsTriplifier();
+        EmitOnceRegistry emitOnceRegistry = null;
+        if (options.has("emit-once")) {
+            emitOnceRegistry = new EmitOnceRegistry();
+            pcTriplifier.setEmitOnceRegistry(emitOnceRegistry);
+        }
+        // Documents that cannot be parsed or triplified are set aside, without statements
+        Quarantine quarantine = Quarantine.fromOptions(options, inputDir, outputDir);
+        pcTriplifier.setQuarantine(quarantine);
+        if (options.has("mapping")) {
+            try {
+                pcTriplifier.setMapping(MappingPlan.load(options.get("mapping", MappingPlan.DEFAULT_SPEC)));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Cannot load the mapping: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        // In single-scan mode the parsed records also feed the business entities
+        CompanyAggregator aggregator = options.has("entities") ? new CompanyAggregator() : null;
+        SpendingStatistics statistics = options.has("statistics") ? new SpendingStatistics() : null;
         File dir = new File(inputDir);
-        Collection files = FileUtils.listFiles(dir, new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY);
+        // Files are read in path order, so that every run over the same corpus is deterministic
+        List<File> sortedFiles = new ArrayList<>(FileUtils.listFiles(dir, new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY));
+        Collections.sort(sortedFiles);
+        Collection<File> files = FileIndex.applyFilters(dir, sortedFiles, options);
+        Shard shard = options.has("shard") ? Shard.parse(options.get("shard", "")) : null;
+        String runName = dateFormat.format(date);
+        if (shard != null) {
+            List<File> shardFiles = new ArrayList<>();
+            for (File file : files) {
+                if (shard.owns(dir, file)) {
+                    shardFiles.add(file);
+                }
+            }
+            System.out.println("Shard " + shard.getIndex() + "/" + shard.getCount() + ": " + shardFiles.size() + " of " + files.size() + " files");
+            files = shardFiles;
+            runName += "_" + shard.getName();
+        }
         System.out.println(files.size() + " JSONs to triplify");
-        Iterator itr = files.iterator();
+        List<File> inputFiles = new ArrayList<>(files);
 
         long startTime = System.currentTimeMillis();
         long endTime = 0;
 
         int processedFiles = 0;
+        // Wall clock time of the first statement produced, for the startup report of short runs
+        long firstTripleTime = 0;
+
+        String storeType = options.get("store", "model");
+        TriplesStore pcStore = createStore(storeType);
+        int chunkSize = options.getInt("chunk-size", 20000);
+        List<File> publishedChunks = new ArrayList<>();
+        // Chunks are written by background threads while the next one is filled (0 to write them in the main loop)
+        int publishInFlight = options.getInt("publish-in-flight", 1);
+        AsyncChunkPublisher publisher = publishInFlight > 0
+                ? new AsyncChunkPublisher(publishInFlight, options.getInt("publish-threads", 1)) : null;
+        if (options.has("partition") && options.has("emit-once")) {
+            // The shared descriptions would be only in the first partition, which could not be reloaded alone
+            System.err.println("--emit-once is not supported with --partition");
+            System.exit(1);
+        }
+        // Partitioned mode: statements go to one N-Quads named graph per year and/or authority
+        PartitionedQuadsWriter quadsWriter = options.has("partition")
+                ? new PartitionedQuadsWriter(new File(outputDir + "/nquads-output" + (shard != null ? "/" + shard.getName() : "")), options.get("partition", "year"),
+                        options.getInt("max-open-files", 64))
+                : null;
+
+        // Checkpoints are taken at chunk boundaries, or every --checkpoint-interval seconds
+        Checkpoint checkpoint = null;
+        String configuration = configuration(args);
+        int startPosition = 0;
+        long checkpointInterval = options.getLong("checkpoint-interval", 0) * 1000;
+        long lastCheckpoint = System.currentTimeMillis();
+        if (options.has("checkpoint") || options.has("resume")) {
+            if (quadsWriter != null) {
+                System.err.println("Checkpoints are not supported with --partition");
+                System.exit(1);
+            }
+            checkpoint = new Checkpoint(new File(outputDir + "/checkpoints/" + (shard != null ? shard.getName() : "run") + ".ckpt"));
+        }
+        if (options.has("resume") && checkpoint.exists()) {
+            try {
+                checkpoint.restore(aggregator, statistics, emitOnceRegistry);
+            } catch (IOException e) {
+                System.err.println("Cannot resume: " + e.getMessage());
+                System.exit(1);
+            }
+            if (!checkpoint.getConfiguration().equals(configuration)) {
+                System.err.println("Cannot resume: the checkpoint was written by a run with options " + checkpoint.getConfiguration());
+                System.exit(1);
+            }
+            if (checkpoint.getPosition() > inputFiles.size()
+                    || !inputFiles.get(checkpoint.getPosition() - 1).toString().equals(checkpoint.getLastFile())) {
+                System.err.println("Cannot resume: the input files have changed since the checkpoint");
+                System.exit(1);
+            }
+            startPosition = checkpoint.getPosition();
+            processedFiles = checkpoint.getProcessedFiles();
+            publishedChunks.addAll(checkpoint.getChunks());
+            runName = checkpoint.getRunName();
+            System.out.println("Resuming " + runName + " after " + processedFiles + " files");
+        } else if (options.has("resume")) {
+            System.out.println("No checkpoint found, starting from the first file");
+        }
 
-        Model pcModel = createBaseModel();
-
-        while (itr.hasNext()) {
-            String value = itr.next().toString();
-            Path path = Paths.get(value);
-            String fileName = path.getFileName().toString();
-            if(!fileName.equals("stats.json") && !fileName.equals("proposingStructure.json")
-                    && !fileName.equals("downloadStats.json")
-                    && !fileName.contains("_index")){
-                String pcJson = dji.getJSON(value, "FILE");
-                List<Statement> pcStatements = pcTriplifier.triplifyJSON(pcJson, value);
-                pcModel.add(pcStatements);
+        // With --threads the files are read, parsed and triplified by a pool of workers, up to the
+        // allowed number ahead of the file being added; results are still consumed in path order
+        int threads = options.getInt("threads", 1);
+        MemoryGovernor governor = MemoryGovernor.fromOptions(options, threads, chunkSize);
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        Deque<Future<TriplifiedFile>> window = new ArrayDeque<>();
+        int nextPosition = startPosition;
+        int chunkFiles = 0;
+        // Set when a chunk cannot be written: no more checkpoints, and the run fails at the end
+        boolean chunksFailed = false;
+
+        for (int position = startPosition; position < inputFiles.size(); position++) {
+            String value = inputFiles.get(position).toString();
+            TriplifiedFile triplified;
+            if (workers != null) {
+                while (nextPosition < inputFiles.size()
+                        && (window.isEmpty() || window.size() < (governor != null ? governor.getAllowedWorkers() : threads))) {
+                    final String next = inputFiles.get(nextPosition++).toString();
+                    final boolean triplify = emitOnceRegistry == null;
+                    window.add(workers.submit(new Callable<TriplifiedFile>() {
+                        @Override
+                        public TriplifiedFile call() {
+                            return triplifyFile(next, cache, pcTriplifier, dji, triplify, quarantine);
+                        }
+                    }));
+                }
+                try {
+                    triplified = window.poll().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException("Error triplifying " + value, e);
+                }
+                if (triplified != null && triplified.statements == null) {
+                    // With emit-once the first contract of an entity must be triplified first
+                    triplified = triplifyParsed(triplified, value, pcTriplifier, dji, quarantine);
+                }
+            } else {
+                triplified = triplifyFile(value, cache, pcTriplifier, dji, true, quarantine);
+            }
+            if (triplified != null && triplified.marks != null) {
+                // The descriptions of an accepted file are not written again
+                emitOnceRegistry.commit(triplified.marks);
+            }
+            if (triplified != null) {
+                JsonNode rootNode = triplified.rootNode;
+                List<Statement> pcStatements = triplified.statements;
+                if (rootNode != null) {
+                    if (aggregator != null) {
+                        aggregator.addJson(rootNode);
+                    }
+                    if (statistics != null) {
+                        statistics.addJson(rootNode);
+                    }
+                }
+                if (firstTripleTime == 0 && !pcStatements.isEmpty()) {
+                    firstTripleTime = System.currentTimeMillis();
+                }
+                if (quadsWriter != null) {
+                    try {
+                        quadsWriter.write(quadsWriter.partitionOf(rootNode), pcStatements);
+                    } catch (IOException e) {
+                        System.out.println("Error writing the N-Quads of " + value + ": " + e.getMessage());
+                    }
+                } else {
+                    pcStore.add(pcStatements);
+                    chunkFiles++;
+                }
                 processedFiles += 1;
                 if (processedFiles %100 == 0) {
                     System.out.println("Processed " + processedFiles +" files...");
                 }
-                if (processedFiles %20000 == 0) {
+                if (governor != null) {
+                    governor.update();
+                }
+                // With --checkpoint-interval the chunk in progress is published early when a checkpoint
+                // is due, so that a crash loses at most the files of the last interval
+                boolean checkpointDue = checkpoint != null && checkpointInterval > 0
+                        && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval;
+                // In partitioned mode the statements are already on disk, there are no chunks
+                if (quadsWriter == null && (processedFiles %chunkSize == 0 || checkpointDue
+                        || (governor != null && governor.shouldFlush(chunkFiles)))) {
                     System.out.println("Publish RDF...");
-                    publishRDF(outputDir + "/rdf-output/" + dateFormat.format(date) +"_rdf_" + processedFiles + ".nt", pcModel);
-                    pcModel = ModelFactory.createDefaultModel();
+                    String chunkFile = outputDir + "/rdf-output/" + runName +"_rdf_" + processedFiles + ".nt";
+                    if (publisher != null) {
+                        publisher.publish(chunkFile, pcStore);
+                    } else if (!publishRDF(chunkFile, pcStore)) {
+                        chunksFailed = true;
+                    }
+                    publishedChunks.add(new File(chunkFile));
+                    pcStore = createStore(storeType);
+                    chunkFiles = 0;
+                    // A checkpoint may only list chunks that are already on disk
+                    if (checkpoint != null && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+                        if (publisher != null && !publisher.awaitPublished()) {
+                            chunksFailed = true;
+                        }
+                        long checkpointStart = System.currentTimeMillis();
+                        if (chunksFailed) {
+                            System.out.println("Checkpoint after " + processedFiles
+                                    + " files skipped: a chunk could not be written, the last checkpoint is kept");
+                        } else {
+                            try {
+                                checkpoint.save(runName, configuration, position + 1, processedFiles, value, publishedChunks,
+                                        aggregator, statistics, emitOnceRegistry);
+                                System.out.println("Checkpoint after " + processedFiles + " files written in "
+                                        + (System.currentTimeMillis() - checkpointStart) + " ms");
+                            } catch (IOException e) {
+                                System.out.println("Error writing the checkpoint: " + e.getMessage());
+                            }
+                        }
+                        lastCheckpoint = System.currentTimeMillis();
+                    }
                 }
             }
         }
-        System.out.println("Publish final RDF...");
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (quadsWriter == null) {
+            System.out.println("Publish final RDF...");
 
-        publishRDF(outputDir + "/rdf-output/" + dateFormat.format(date) + "_rdf.nt", pcModel);
+            String finalChunkFile = outputDir + "/rdf-output/" + runName + "_rdf.nt";
+            if (publisher != null) {
+                publisher.publish(finalChunkFile, pcStore);
+                if (!publisher.close()) {
+                    chunksFailed = true;
+                }
+                System.out.println("Waited " + publisher.getWaitMillis() + " ms for the chunk writers");
+            } else if (!publishRDF(finalChunkFile, pcStore)) {
+                chunksFailed = true;
+            }
+            publishedChunks.add(new File(finalChunkFile));
+            if (chunksFailed) {
+                // The HDT file and the business entities would be built on missing or truncated chunks
+                System.out.println("The run failed: some chunks could not be written"
+                        + (checkpoint != null && checkpoint.exists() ? ", resume it from the last checkpoint with --resume" : ""));
+                if (quarantine != null) {
+                    quarantine.close();
+                }
+                System.exit(1);
+            }
+        } else {
+            if (publisher != null) {
+                publisher.close();
+            }
+            try {
+                quadsWriter.close();
+            } catch (IOException e) {
+                System.out.println("Error closing the N-Quads partitions: " + e.getMessage());
+            }
+            System.out.println("Written " + quadsWriter.getQuads() + " quads in " + quadsWriter.getPartitions()
+                    + " named graphs (" + quadsWriter.getReopenedFiles() + " partition files reopened, "
+                    + quadsWriter.getDuplicates() + " repeated statements skipped)");
+        }
+
+        if (shard != null) {
+            // Entities and statistics are combined by ShardsMerger, which also removes the
+            // public administrations and builds the HDT file of the whole corpus
+            writeShardManifest(shard, outputDir, files.size(), publishedChunks, aggregator, statistics);
+        } else if (statistics != null) {
+            try {
+                statistics.writeJSON(new File(outputDir + "/statistics/" + runName + "_spending.json"));
+            } catch (IOException e) {
+                System.out.println("Error writing the spending statistics: " + e.getMessage());
+            }
+        }
+
+        if (options.has("hdt") && shard == null && quadsWriter == null) {
+            System.out.println("Publish HDT...");
+            try {
+                HDTPublisher.publishHDT(publishedChunks, outputDir + "/hdt-output/" + runName + "_rdf.hdt",
+                        options.getLong("memory", 256) * 1024 * 1024);
+            } catch (Exception e) {
+                System.out.println("Error building the HDT file: " + e.getMessage());
+            }
+        }
+
+        if (aggregator != null && shard == null) {
+            publishBusinessEntities(aggregator,
+                    options.get("proposing-structures", inputDir + "/proposingStructures.json"),
+                    outputDir, outputDir + "/rdf-output/" + runName + "_business-entities-labels.nt");
+            EntityResolver resolver = EntityResolver.fromOptions(options);
+            if (resolver != null) {
+                resolver.publish(aggregator.getCompanies(), new File(options.get("same-as", outputDir)));
+            }
+        }
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
         endTime = System.currentTimeMillis();
+        if (cache != null) {
+            closeCache(cache);
+        }
+        if (emitOnceRegistry != null) {
+            System.out.println("Emit-once: " + emitOnceRegistry.getDescribedStatements() + " descriptive statements written, "
+                    + emitOnceRegistry.getSuppressedStatements() + " repeated statements suppressed (~"
+                    + emitOnceRegistry.getSuppressedBytes() / (1024 * 1024) + " MB of N-Triples)");
+        }
+        if (governor != null) {
+            System.out.println(governor.summary());
+        }
+        if (quarantine != null) {
+            quarantine.close();
+            if (quarantine.getFailures() > 0) {
+                System.out.println(quarantine.summary());
+            }
+        }
+        if (firstTripleTime > 0) {
+            System.out.println("Time to first triple: "
+                    + (firstTripleTime - ManagementFactory.getRuntimeMXBean().getStartTime()) + " ms from JVM start");
+        }
         System.out.println("Time in minutes: "+ ((endTime-startTime)/1000)/60);
 
         /*// Generate labels of proposing structures
@@ -106,6 +418,205 @@ public class TriplesGenerator {
         RDFforTestingData(pctest, testJson, createBaseModel());*/
     }
 
+    /**
+     * The command line without --resume, which must be the same for a run and its resumption
+     */
+    private static String configuration(String[] args) {
+        List<String> configuration = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.equals("--resume")) {
+                configuration.add(arg);
+            }
+        }
+        return String.join(" ", configuration);
+    }
+
+    /**
+     * The parsed tree of a file and its statements, null until the file is triplified
+     */
+    private static class TriplifiedFile {
+        JsonNode rootNode;
+        List<Statement> statements;
+        // Emit-once marks of the statements, committed when the file is accepted
+        EmitOnceRegistry.Marks marks;
+    }
+
+    /**
+     * Read, parse and triplify a file within the time budget of the quarantine
+     * @return The result, or null for the files that are not contracts and for the failed ones
+     */
+    private static TriplifiedFile triplifyFile(final String value, final SmileJSONCache cache, final PublicContractsTriplifier pcTriplifier,
+                                               final DefaultJSONImporter dji, final boolean triplify, Quarantine quarantine) {
+        if (quarantine == null) {
+            return triplifyFile(value, cache, pcTriplifier, dji, triplify);
+        }
+        return quarantine.run(value, new Callable<TriplifiedFile>() {
+            @Override
+            public TriplifiedFile call() {
+                return triplifyFile(value, cache, pcTriplifier, dji, triplify);
+            }
+        });
+    }
+
+    /**
+     * Triplify a file already parsed by a worker, within the time budget of the quarantine
+     * @return The result, or null if the file failed or exceeded the budget
+     */
+    private static TriplifiedFile triplifyParsed(final TriplifiedFile triplified, final String value,
+                                                 final PublicContractsTriplifier pcTriplifier, final DefaultJSONImporter dji,
+                                                 Quarantine quarantine) {
+        if (quarantine == null) {
+            triplified.statements = triplifyFile(triplified, value, pcTriplifier, dji);
+            return triplified;
+        }
+        return quarantine.run(value, new Callable<TriplifiedFile>() {
+            @Override
+            public TriplifiedFile call() {
+                triplified.statements = triplifyFile(triplified, value, pcTriplifier, dji);
+                return triplified;
+            }
+        });
+    }
+
+    /**
+     * Read and parse a file and, if requested, triplify it
+     * @return The result, or null for the files that are not contracts
+     */
+    private static TriplifiedFile triplifyFile(String value, SmileJSONCache cache, PublicContractsTriplifier pcTriplifier,
+                                               DefaultJSONImporter dji, boolean triplify) {
+        String fileName = Paths.get(value).getFileName().toString();
+        if (fileName.equals("stats.json") || fileName.equals("proposingStructure.json")
+                || fileName.equals("downloadStats.json") || fileName.contains("_index")) {
+            return null;
+        }
+        TriplifiedFile triplified = new TriplifiedFile();
+        triplified.rootNode = readJSON(value, cache);
+        // A file abandoned for exceeding the time budget is not triplified
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        if (triplify) {
+            triplified.statements = triplifyFile(triplified, value, pcTriplifier, dji);
+        }
+        return triplified;
+    }
+
+    /**
+     * With emit-once the marks are kept in the file and committed by the main loop, so that a file
+     * abandoned for exceeding the time budget does not hide the descriptions of its entities
+     */
+    private static List<Statement> triplifyFile(TriplifiedFile triplified, String value, PublicContractsTriplifier pcTriplifier,
+                                                DefaultJSONImporter dji) {
+        EmitOnceRegistry registry = pcTriplifier.getEmitOnceRegistry();
+        if (registry != null) {
+            registry.begin();
+        }
+        try {
+            if (triplified.rootNode != null) {
+                return pcTriplifier.triplifyJSON(triplified.rootNode, value);
+            }
+            // The triplifier parses the text again only to report the error
+            return pcTriplifier.triplifyJSON(dji.getJSON(value, "FILE"), value);
+        } finally {
+            if (registry != null) {
+                triplified.marks = registry.end();
+            }
+        }
+    }
+
+    /**
+     * Parse a JSON file once, from the binary cache when it is enabled
+     * @return The root node, or null if the file cannot be parsed
+     */
+    private static JsonNode readJSON(String value, SmileJSONCache cache) {
+        try {
+            if (cache != null) {
+                try (Span parse = Profiling.begin(Stage.PARSE)) {
+                    JsonNode rootNode = cache.readTree(value);
+                    parse.path(value).lots(PublicContractsTriplifier.countLots(rootNode));
+                    return rootNode;
+                }
+            }
+            byte[] content;
+            try (Span read = Profiling.begin(Stage.FILE_READ)) {
+                content = Files.readAllBytes(Paths.get(value));
+                read.path(value).bytes(content.length);
+            }
+            try (Span parse = Profiling.begin(Stage.PARSE)) {
+                JsonNode rootNode = JSONTreeReader.readTree(content);
+                parse.path(value).bytes(content.length).lots(PublicContractsTriplifier.countLots(rootNode));
+                return rootNode;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the aggregates of a shard and its manifest, listing the chunks relative to the output directory.
+     * The manifest is written last: its presence means that the shard is complete.
+     */
+    private static void writeShardManifest(Shard shard, String outputDir, int files, List<File> chunks,
+                                           CompanyAggregator aggregator, SpendingStatistics statistics) {
+        File shardsDir = new File(outputDir + "/shards");
+        shardsDir.mkdirs();
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("shard", shard.getIndex());
+        manifest.put("shards", shard.getCount());
+        manifest.put("files", files);
+        List<String> chunkPaths = new ArrayList<>();
+        for (File chunk : chunks) {
+            chunkPaths.add(Shard.relativePath(new File(outputDir), chunk));
+        }
+        manifest.put("chunks", chunkPaths);
+        try {
+            if (aggregator != null) {
+                String entities = shard.getName() + ".entities";
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(shardsDir, entities))))) {
+                    aggregator.writeSnapshot(out);
+                }
+                manifest.put("entities", "shards/" + entities);
+            }
+            if (statistics != null) {
+                String spending = shard.getName() + ".statistics";
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(shardsDir, spending))))) {
+                    statistics.writeSnapshot(out);
+                }
+                manifest.put("statistics", "shards/" + spending);
+            }
+            new ObjectMapper().writeValue(new File(shardsDir, shard.getName() + ".json"), manifest);
+        } catch (IOException e) {
+            System.out.println("Error writing the manifest of " + shard.getName() + ": " + e.getMessage());
+        }
+    }
+
+    static void publishBusinessEntities(CompanyAggregator aggregator, String proposingStructuresFile,
+                                                String outputDir, String labelsFile) throws FileNotFoundException {
+        System.out.println("Generate data for businessEntities...");
+        aggregator.removePA(proposingStructuresFile);
+        System.out.println(String.format("Found %d distinct business entities.", aggregator.size()));
+        try {
+            aggregator.writeBusinessEntities(new File(outputDir + "/businessEntities.json"));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        PropStructLabelsTriplifier belt = new PropStructLabelsTriplifier();
+        Model labelsModel = createBaseModel();
+        labelsModel.add(belt.triplifyCompanies(aggregator.getCompanies()));
+        publishRDF(labelsFile, labelsModel);
+    }
+
+    /**
+     * Create the store that accumulates a chunk: "model" is a full Jena graph,
+     * "dedup" only removes duplicates and takes much less memory per triple
+     */
+    private static TriplesStore createStore(String storeType) {
+        if (storeType.equals("dedup")) {
+            return new DedupTriplesStore();
+        }
+        return new ModelTriplesStore(ModelFactory.createDefaultModel());
+    }
+
     private static Model createBaseModel(){
         Model result = ModelFactory.createDefaultModel();
         Map<String, String> prefixMap = new HashMap<String, String>();
@@ -126,8 +637,52 @@ public class TriplesGenerator {
     private static void publishRDF(String filePath, Model model) throws FileNotFoundException {
         File file = new File(filePath.replaceAll("(.+)/[^/]+", "$1"));
         file.mkdirs();
-        OutputStream outTurtle = new FileOutputStream(new File(filePath));
-        RDFDataMgr.write(outTurtle, model, RDFFormat.NTRIPLES);
+        try (Span span = Profiling.begin(Stage.CHUNK_PUBLISH)) {
+            OutputStream outTurtle = new FileOutputStream(new File(filePath));
+            RDFDataMgr.write(outTurtle, model, RDFFormat.NTRIPLES);
+            span.path(filePath).triples(model.size());
+            if (span.isRecording()) {
+                span.bytes(new File(filePath).length());
+            }
+        }
+    }
+
+    /**
+     * Report the hits of the JSON cache, save its index and remove the entries no longer used
+     */
+    private static void closeCache(SmileJSONCache cache) {
+        System.out.println("JSON cache hits: " + cache.getHits() + " (" + cache.getUnreadSources() + " without reading the source)"
+                + ", misses: " + cache.getMisses());
+        try {
+            System.out.println("JSON cache: " + cache.close() + " unused entries removed");
+        } catch (IOException e) {
+            System.out.println("Error saving the JSON cache index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return False if the chunk could not be written
+     */
+    private static boolean publishRDF(String filePath, TriplesStore store) throws FileNotFoundException {
+        File file = new File(filePath.replaceAll("(.+)/[^/]+", "$1"));
+        file.mkdirs();
+        try (Span span = Profiling.begin(Stage.CHUNK_PUBLISH);
+             FileOutputStream out = new FileOutputStream(new File(filePath))) {
+            store.writeNTriples(out);
+            // On disk before a checkpoint lists it, as with the background writers
+            out.flush();
+            out.getFD().sync();
+            span.path(filePath).triples(store.size());
+            if (span.isRecording()) {
+                span.bytes(new File(filePath).length());
+            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("Error writing " + filePath + ": " + e.getMessage());
+            return false;
+        }
+        return true;
     }
 
     private static void RDFforProposingStructureLabels(PropStructLabelsTriplifier pslt, String inputJson, Model model, String output) throws FileNotFoundException {
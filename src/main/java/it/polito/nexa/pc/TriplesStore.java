@@ -0,0 +1,20 @@
+package it.polito.nexa.pc;
+
+import com.hp.hpl.jena.rdf.model.Statement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Accumulates the statements of a chunk, without duplicates, until it is published.
+ */
+public interface TriplesStore {
+
+    public void add(List<Statement> statementList);
+
+    public long size();
+
+    public void writeNTriples(OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,270 @@
+package it.polito.nexa.pc.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.polito.nexa.pc.CommandLineOptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * End-to-end benchmark of the pipeline modes on a synthetic corpus.
+ *
+ * The corpus is written by SyntheticCorpusGenerator (and reused while its parameters do not
+ * change); every mode then runs in its own JVM, started through the Probe class below, which
+ * reports the garbage collection time and the peak resident set size of the process when it
+ * exits. Throughput, peak RSS and GC time of each mode are compared with a stored baseline and
+ * the regressions beyond the tolerance make the benchmark exit with status 2.
+ */
+public class MacroBenchmark {
+
+    private static String PROBE_PREFIX = "macro-benchmark-probe ";
+
+    // Name, main class and arguments; {lots}, {out} and {ps} stand for the lots directory,
+    // the output directory of the mode and the proposing structures of the corpus
+    private static String[][] MODES = {
+            {"model", "it.polito.nexa.pc.TriplesGenerator", "{lots} {out}"},
+            {"dedup", "it.polito.nexa.pc.TriplesGenerator", "{lots} {out} --store dedup"},
+            {"dedup-emit-once", "it.polito.nexa.pc.TriplesGenerator", "{lots} {out} --store dedup --emit-once"},
+            {"single-scan", "it.polito.nexa.pc.TriplesGenerator", "{lots} {out} --store dedup --entities --statistics --proposing-structures {ps}"},
+            {"partition", "it.polito.nexa.pc.TriplesGenerator", "{lots} {out} --partition year-authority"},
+            {"main-service", "it.polito.nexa.pc.businessEntities.MainService", "{lots} --proposing-structures {ps} --output {out}/businessEntities.json"}
+    };
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: MacroBenchmark <workDir> [--lots <n>] [--seed <seed>] [--modes <mode,...>] [--heap <size>]"
+                    + " [--baseline <file>] [--save-baseline] [--tolerance <percent>]");
+            System.err.println("Modes: model, dedup, dedup-emit-once, single-scan, partition, main-service");
+            System.exit(1);
+        }
+        File workDir = new File(options.getPositional().get(0));
+        String heap = options.get("heap", "2g");
+        double tolerance = Double.parseDouble(options.get("tolerance", "10")) / 100;
+        File baselineFile = new File(options.get("baseline", "src/main/benchmarks/macro-baseline.json"));
+        List<String> selected = options.has("modes") ? Arrays.asList(options.get("modes", "").split(",")) : null;
+
+        SyntheticCorpusGenerator generator = SyntheticCorpusGenerator.fromOptions(options);
+        Properties parameters = generator.parameters();
+        File corpusDir = new File(workDir, "corpus-" + parameters.getProperty("lots") + "-" + parameters.getProperty("seed"));
+        if (!parameters.equals(readProperties(new File(corpusDir, "corpus.properties")))) {
+            System.out.println("Generating the corpus in " + corpusDir + "...");
+            FileUtils.deleteDirectory(corpusDir);
+            generator.generate(corpusDir);
+        }
+        long lots = Long.parseLong(parameters.getProperty("lots"));
+        long corpusBytes = FileUtils.sizeOfDirectory(new File(corpusDir, "lots"));
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> failed = new ArrayList<>();
+        for (String[] mode : MODES) {
+            if (selected != null && !selected.contains(mode[0])) {
+                continue;
+            }
+            File outputDir = new File(workDir, "output-" + mode[0]);
+            FileUtils.deleteDirectory(outputDir);
+            outputDir.mkdirs();
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-Xmx" + heap);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Probe.class.getName());
+            command.add(mode[1]);
+            for (String arg : mode[2].split(" ")) {
+                command.add(arg.replace("{lots}", new File(corpusDir, "lots").getPath())
+                        .replace("{out}", outputDir.getPath())
+                        .replace("{ps}", new File(corpusDir, "proposingStructures.json").getPath()));
+            }
+            System.out.println("Running " + mode[0] + "...");
+            Result result = run(command, new File(outputDir, "run.log"));
+            if (result == null) {
+                System.out.println(mode[0] + " failed, see " + new File(outputDir, "run.log"));
+                failed.add(mode[0]);
+                continue;
+            }
+            result.lotsPerSecond = lots / result.seconds;
+            result.megabytesPerSecond = corpusBytes / result.seconds / (1024 * 1024);
+            results.put(mode[0], result);
+        }
+
+        ObjectMapper mapper = new ObjectMapper().configure(SerializationFeature.INDENT_OUTPUT, true);
+        JsonNode baseline = baselineFile.exists() ? mapper.readTree(baselineFile) : null;
+        if (baseline != null && (!baseline.path("lots").asText().equals(parameters.getProperty("lots"))
+                || !baseline.path("seed").asText().equals(parameters.getProperty("seed")))) {
+            System.out.println("The baseline in " + baselineFile + " was recorded on a different corpus, it is not compared");
+            baseline = null;
+        }
+
+        System.out.println(String.format("%n%d lots, %d MB of JSON, heap %s", lots, corpusBytes / (1024 * 1024), heap));
+        System.out.println(String.format("%-16s %9s %10s %8s %10s %9s  %s", "mode", "time (s)", "lots/s", "MB/s", "RSS (MB)", "GC (ms)", "vs baseline"));
+        // A mode that crashed counts as a regression
+        int regressions = failed.size();
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            String comparison = "";
+            JsonNode base = baseline != null ? baseline.path("modes").path(entry.getKey()) : null;
+            if (base != null && !base.isMissingNode()) {
+                List<String> problems = new ArrayList<>();
+                double throughput = result.lotsPerSecond / base.path("lotsPerSecond").asDouble() - 1;
+                double rss = (double) result.peakRssMB / base.path("peakRssMB").asDouble() - 1;
+                long gc = result.gcMillis - base.path("gcMillis").asLong();
+                if (throughput < -tolerance) {
+                    problems.add("throughput");
+                }
+                if (rss > tolerance) {
+                    problems.add("RSS");
+                }
+                // Short GC times are too noisy to be compared as a ratio alone
+                if (gc > 200 && gc > tolerance * base.path("gcMillis").asLong()) {
+                    problems.add("GC");
+                }
+                comparison = String.format("throughput %+.1f%%, RSS %+.1f%%, GC %+d ms", throughput * 100, rss * 100, gc)
+                        + (problems.isEmpty() ? "" : "  REGRESSION " + String.join(", ", problems));
+                regressions += problems.isEmpty() ? 0 : 1;
+            }
+            System.out.println(String.format("%-16s %9.1f %10.0f %8.1f %10d %9d  %s", entry.getKey(), result.seconds,
+                    result.lotsPerSecond, result.megabytesPerSecond, result.peakRssMB, result.gcMillis, comparison));
+        }
+        for (String mode : failed) {
+            System.out.println(String.format("%-16s %9s %10s %8s %10s %9s  %s", mode, "-", "-", "-", "-", "-", "FAILED"));
+        }
+
+        if (options.has("save-baseline")) {
+            ObjectNode saved = baselineFile.exists() && baseline != null ? (ObjectNode) baseline : mapper.createObjectNode();
+            saved.put("lots", parameters.getProperty("lots"));
+            saved.put("seed", parameters.getProperty("seed"));
+            saved.put("heap", heap);
+            saved.put("java", System.getProperty("java.version"));
+            ObjectNode modes = saved.has("modes") ? (ObjectNode) saved.get("modes") : saved.putObject("modes");
+            for (Map.Entry<String, Result> entry : results.entrySet()) {
+                ObjectNode mode = modes.putObject(entry.getKey());
+                mode.put("seconds", Math.round(entry.getValue().seconds * 10) / 10.0);
+                mode.put("lotsPerSecond", Math.round(entry.getValue().lotsPerSecond));
+                mode.put("peakRssMB", entry.getValue().peakRssMB);
+                mode.put("gcMillis", entry.getValue().gcMillis);
+            }
+            baselineFile.getAbsoluteFile().getParentFile().mkdirs();
+            mapper.writeValue(baselineFile, saved);
+            System.out.println("Baseline written to " + baselineFile);
+        }
+        System.exit(regressions > 0 ? 2 : 0);
+    }
+
+    private static class Result {
+        double seconds;
+        double lotsPerSecond;
+        double megabytesPerSecond;
+        long peakRssMB;
+        long gcMillis;
+    }
+
+    /**
+     * Run a mode, keeping its output in a log file
+     * @return The measures, or null if the process failed
+     */
+    private static Result run(List<String> command, File log) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        Result result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(log, "UTF-8")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.println(line);
+                if (line.startsWith(PROBE_PREFIX)) {
+                    Properties measures = new Properties();
+                    measures.load(new java.io.StringReader(line.substring(PROBE_PREFIX.length()).replace(' ', '\n')));
+                    result = new Result();
+                    result.peakRssMB = Long.parseLong(measures.getProperty("peakRssKB")) / 1024;
+                    result.gcMillis = Long.parseLong(measures.getProperty("gcMillis"));
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            return null;
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        return result;
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Runs the main method of another class and, when the JVM exits, prints its total GC time and
+     * its peak RSS (VmHWM on Linux, otherwise the sum of the peak usage of the memory pools).
+     */
+    public static class Probe {
+
+        public static void main(String[] args) throws Exception {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    long gcMillis = 0;
+                    long collections = 0;
+                    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                        gcMillis += Math.max(0, gc.getCollectionTime());
+                        collections += Math.max(0, gc.getCollectionCount());
+                    }
+                    System.out.println(PROBE_PREFIX + "gcMillis=" + gcMillis + " collections=" + collections
+                            + " peakRssKB=" + peakRssKB());
+                }
+            });
+            Method main = Class.forName(args[0]).getMethod("main", String[].class);
+            main.invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+        }
+
+        private static long peakRssKB() {
+            File status = new File("/proc/self/status");
+            if (status.exists()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("VmHWM:")) {
+                            return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // Use the memory pools
+                }
+            }
+            long peak = 0;
+            for (Iterator<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans().iterator(); pools.hasNext(); ) {
+                peak += pools.next().getPeakUsage().getUsed();
+            }
+            return peak / 1024;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package it.polito.nexa.pc.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hp.hpl.jena.rdf.model.Statement;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.importers.JSONTreeReader;
+import it.polito.nexa.pc.mapping.MappingPlan;
+import it.polito.nexa.pc.triplifiers.EmitOnceRegistry;
+import it.polito.nexa.pc.triplifiers.PublicContractsTriplifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.RegexFileFilter;
+
+/**
+ * Checks that a mapping spec reproduces the statements of the hand-written PublicContractsTriplifier
+ * on a corpus, in the same order and with and without the emit-once registry, then compares the
+ * time both take to triplify the already parsed documents.
+ */
+public class MappingBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: MappingBenchmark <inputDir> [--spec <file>] [--rounds <n>]");
+            System.exit(1);
+        }
+        MappingPlan plan = MappingPlan.load(options.get("spec", MappingPlan.DEFAULT_SPEC));
+        int rounds = options.getInt("rounds", 5);
+
+        List<File> files = new ArrayList<>(FileUtils.listFiles(new File(options.getPositional().get(0)),
+                new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY));
+        Collections.sort(files);
+        List<JsonNode> trees = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        long lots = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals("stats.json") || name.startsWith("proposingStructure") || name.equals("downloadStats.json")
+                    || name.contains("_index")) {
+                continue;
+            }
+            try {
+                JsonNode tree = JSONTreeReader.readTree(file);
+                if (tree != null) {
+                    trees.add(tree);
+                    paths.add(file.getPath());
+                    lots += PublicContractsTriplifier.countLots(tree);
+                }
+            } catch (IOException e) {
+                System.out.println("Skipping " + file + ": " + e.getMessage());
+            }
+        }
+        System.out.println(trees.size() + " documents, " + lots + " lots");
+
+        PublicContractsTriplifier handWritten = new PublicContractsTriplifier();
+        PublicContractsTriplifier mapped = new PublicContractsTriplifier();
+        mapped.setMapping(plan);
+        int mismatches = verify(handWritten, mapped, trees, paths, "without emit-once");
+        EmitOnceRegistry handWrittenRegistry = new EmitOnceRegistry();
+        EmitOnceRegistry mappedRegistry = new EmitOnceRegistry();
+        handWritten.setEmitOnceRegistry(handWrittenRegistry);
+        mapped.setEmitOnceRegistry(mappedRegistry);
+        mismatches += verify(handWritten, mapped, trees, paths, "with emit-once");
+        if (handWrittenRegistry.getSuppressedStatements() != mappedRegistry.getSuppressedStatements()) {
+            System.out.println("Suppressed statements differ: " + handWrittenRegistry.getSuppressedStatements()
+                    + " hand-written, " + mappedRegistry.getSuppressedStatements() + " mapped");
+            mismatches++;
+        }
+        handWritten.setEmitOnceRegistry(null);
+        mapped.setEmitOnceRegistry(null);
+
+        long bestHandWritten = Long.MAX_VALUE;
+        long bestMapped = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            bestHandWritten = Math.min(bestHandWritten, time(handWritten, trees, paths));
+            bestMapped = Math.min(bestMapped, time(mapped, trees, paths));
+        }
+        System.out.println(String.format("Hand-written: %6d ms, %8.0f lots/s", bestHandWritten / 1000000, lots * 1e9 / bestHandWritten));
+        System.out.println(String.format("Mapping:      %6d ms, %8.0f lots/s (%.2fx)", bestMapped / 1000000, lots * 1e9 / bestMapped,
+                (double) bestHandWritten / bestMapped));
+        System.out.println(mismatches == 0 ? "The mapping reproduces the hand-written statements"
+                : mismatches + " documents differ");
+        System.exit(mismatches == 0 ? 0 : 2);
+    }
+
+    private static int verify(PublicContractsTriplifier expected, PublicContractsTriplifier actual,
+                              List<JsonNode> trees, List<String> paths, String mode) {
+        int mismatches = 0;
+        for (int i = 0; i < trees.size(); i++) {
+            List<Statement> expectedStatements = expected.triplifyJSON(trees.get(i), paths.get(i));
+            List<Statement> actualStatements = actual.triplifyJSON(trees.get(i), paths.get(i));
+            int size = Math.min(expectedStatements.size(), actualStatements.size());
+            int index = 0;
+            while (index < size && expectedStatements.get(index).asTriple().equals(actualStatements.get(index).asTriple())) {
+                index++;
+            }
+            if (index < size || expectedStatements.size() != actualStatements.size()) {
+                if (mismatches++ < 5) {
+                    System.out.println(paths.get(i) + " (" + mode + "): " + expectedStatements.size() + " statements expected, "
+                            + actualStatements.size() + " produced; first difference at " + index + ": "
+                            + (index < expectedStatements.size() ? expectedStatements.get(index) : "none") + " / "
+                            + (index < actualStatements.size() ? actualStatements.get(index) : "none"));
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    private static long time(PublicContractsTriplifier triplifier, List<JsonNode> trees, List<String> paths) {
+        long start = System.nanoTime();
+        long statements = 0;
+        for (int i = 0; i < trees.size(); i++) {
+            statements += triplifier.triplifyJSON(trees.get(i), paths.get(i)).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        // Keeps the results alive
+        if (statements < 0) {
+            System.out.println(statements);
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,97 @@
+package it.polito.nexa.pc.benchmarks;
+
+import it.polito.nexa.pc.CommandLineOptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Startup time of short TriplesGenerator runs: the executable JAR is started a number of times
+ * on a small input, with and without the AppCDS archive built by the appcds profile, and the
+ * time to the first triple (reported by TriplesGenerator from the JVM start) and the wall time
+ * of the whole process are compared.
+ */
+public class StartupBenchmark {
+
+    private static Pattern FIRST_TRIPLE = Pattern.compile("Time to first triple: (\\d+) ms");
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: StartupBenchmark <jar-with-dependencies> <inputDir> [--archive <jsa>]"
+                    + " [--runs <n>] [--store model|dedup] [--output <dir>]");
+            System.exit(1);
+        }
+        String jar = options.getPositional().get(0);
+        String inputDir = options.getPositional().get(1);
+        String archive = options.get("archive", "target/rdf-public-contracts.jsa");
+        int runs = options.getInt("runs", 10);
+        String store = options.get("store", "model");
+        File outputDir = new File(options.get("output", System.getProperty("java.io.tmpdir") + "/startup-benchmark"));
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-jar");
+        command.add(jar);
+        command.add(inputDir);
+        command.add(outputDir.getPath());
+        command.add("--store");
+        command.add(store);
+        measure("Default CDS", command, runs, outputDir);
+
+        if (new File(archive).exists()) {
+            command.add(1, "-XX:SharedArchiveFile=" + archive);
+            measure("AppCDS " + archive, command, runs, outputDir);
+        } else {
+            System.out.println("No AppCDS archive at " + archive + ", build it with mvn package -Pappcds");
+        }
+    }
+
+    private static void measure(String configuration, List<String> command, int runs, File outputDir)
+            throws IOException, InterruptedException {
+        List<Long> firstTriple = new ArrayList<>();
+        List<Long> wall = new ArrayList<>();
+        // The first run also warms up the page cache and is not counted
+        for (int run = 0; run <= runs; run++) {
+            FileUtils.deleteDirectory(outputDir);
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            Long time = null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = FIRST_TRIPLE.matcher(line);
+                    if (matcher.find()) {
+                        time = Long.parseLong(matcher.group(1));
+                    } else if (line.contains("Unable to use shared archive")) {
+                        System.out.println(configuration + ": " + line);
+                    }
+                }
+            }
+            if (process.waitFor() != 0 || time == null) {
+                System.out.println(configuration + ": run " + run + " failed or produced no triples");
+                return;
+            }
+            if (run > 0) {
+                firstTriple.add(time);
+                wall.add((System.nanoTime() - start) / 1000000);
+            }
+        }
+        Collections.sort(firstTriple);
+        Collections.sort(wall);
+        System.out.println(String.format("%-40s first triple min %5d ms, median %5d ms; process median %5d ms (%d runs)",
+                configuration, firstTriple.get(0), firstTriple.get(runs / 2), wall.get(runs / 2), runs));
+    }
+}
@@ -0,0 +1,506 @@
+package it.polito.nexa.pc.benchmarks;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import it.polito.nexa.pc.CommandLineOptions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes a synthetic corpus in the format of the ANAC converter, one JSON file per lot, for
+ * testing the pipeline at scales that the sample files in the repository cannot reach.
+ *
+ * The corpus is fully determined by its parameters and the seed. Suppliers and contracting
+ * authorities are drawn from a Zipf distribution, so a few of them appear in a large share of
+ * the lots as in the real data; some suppliers are foreign or have an invalid fiscal code (and
+ * a companyHash), some participants are groups ("raggruppamento") with a representative and
+ * principals, some lots carry an errors array with the original value of the broken field, and
+ * the names of the suppliers are spelled in slightly different ways from a lot to another.
+ *
+ * Layout of the output directory:
+ *
+ *   lots/<year>/<authority fiscal code>/<cig>.json   the lots
+ *   proposingStructures.json                         the contracting authorities, for removePA
+ *   corpus.properties                                the parameters of the corpus
+ */
+public class SyntheticCorpusGenerator {
+
+    private static String[] PROCEDURES = {
+            "23-AFFIDAMENTO IN ECONOMIA - AFFIDAMENTO DIRETTO",
+            "08-AFFIDAMENTO IN ECONOMIA - COTTIMO FIDUCIARIO",
+            "04-PROCEDURA NEGOZIATA SENZA PREVIA PUBBLICAZIONE DEL BANDO",
+            "01-PROCEDURA APERTA",
+            "26-AFFIDAMENTO DIRETTO IN ADESIONE AD ACCORDO QUADRO/CONVENZIONE",
+            "02-PROCEDURA RISTRETTA",
+            "03-PROCEDURA NEGOZIATA PREVIA PUBBLICAZIONE DEL BANDO",
+            "24-AFFIDAMENTO DIRETTO A SOCIETA' IN HOUSE",
+            "07-SISTEMA DINAMICO DI ACQUISIZIONE",
+            "17-AFFIDAMENTO DIRETTO EX ART. 5 DELLA LEGGE N.381/91",
+            "05-DIALOGO COMPETITIVO"
+    };
+    // Relative frequency of the procedure types above
+    private static double[] PROCEDURE_WEIGHTS = {60, 14, 8, 5, 4, 2, 2, 2, 1, 1, 1};
+
+    private static String[] SURNAMES = {"ROSSI", "RUSSO", "FERRARI", "ESPOSITO", "BIANCHI", "ROMANO", "COLOMBO",
+            "RICCI", "MARINO", "GRECO", "BRUNO", "GALLO", "CONTI", "DE LUCA", "MANCINI", "COSTA", "GIORDANO",
+            "RIZZO", "LOMBARDI", "MORETTI", "BARBIERI", "FONTANA", "SANTORO", "MARIANI", "RINALDI", "CARUSO",
+            "FERRARA", "GALLI", "MARTINI", "LEONE", "LONGO", "GENTILE", "MARTINELLI", "VITALE", "SERRA"};
+    private static String[] SECTORS = {"COSTRUZIONI", "EDILIZIA", "IMPIANTI", "SERVIZI", "INFORMATICA", "SISTEMI",
+            "FORNITURE", "TECNOLOGIE", "ELETTRONICA", "MEDICALE", "PULIZIE", "TRASPORTI", "ARREDAMENTI",
+            "ENERGIA", "AMBIENTE", "MANUTENZIONI", "LABORATORI", "TELECOMUNICAZIONI", "GRAFICA", "CONSULTING"};
+    private static String[] PREFIXES = {"", "", "", "NUOVA ", "GRUPPO ", "ITAL", "EURO", "TECNO", "MEDITERRANEA "};
+    private static String[] LEGAL_FORMS = {"S.R.L.", "S.P.A.", "S.N.C.", "S.A.S.", "SOC. COOP.", "S.R.L.S."};
+    private static String[] FOREIGN_FORMS = {"GMBH", "LTD", "SA", "BV", "AG", "INC"};
+    private static String[] COUNTRIES = {"DE", "FR", "ES", "GB", "NL", "AT", "CH", "US"};
+    private static String[] CITIES = {"TORINO", "MILANO", "ROMA", "NAPOLI", "GENOVA", "BOLOGNA", "FIRENZE",
+            "BARI", "PALERMO", "VENEZIA", "VERONA", "PADOVA", "TRIESTE", "BRESCIA", "PARMA", "MODENA", "CAGLIARI",
+            "PERUGIA", "ANCONA", "TRENTO", "AOSTA", "POTENZA", "CATANZARO", "PESCARA", "CAMPOBASSO", "NOVARA",
+            "CUNEO", "ASTI", "ALESSANDRIA", "BERGAMO", "COMO", "LECCE", "SALERNO", "PISA", "LUCCA", "SIENA"};
+    private static String[] AUTHORITY_TYPES = {"COMUNE DI ", "COMUNE DI ", "COMUNE DI ", "AZIENDA SANITARIA LOCALE ",
+            "UNIVERSITA' DEGLI STUDI DI ", "PROVINCIA DI ", "ISTITUTO COMPRENSIVO ", "AZIENDA OSPEDALIERA DI ",
+            "CAMERA DI COMMERCIO DI ", "PREFETTURA DI "};
+    private static String[] OBJECTS = {"Fornitura di", "Servizio di", "Lavori di", "Acquisto di", "Manutenzione di",
+            "Noleggio di", "Affidamento del servizio di"};
+    private static String[] GOODS = {"materiale di cancelleria", "apparecchiature informatiche", "arredi per uffici",
+            "pulizia dei locali", "riscaldamento degli edifici", "strumentazione scientifica", "licenze software",
+            "reagenti di laboratorio", "manutenzione stradale", "mensa scolastica", "trasporto scolastico",
+            "materiale sanitario", "energia elettrica", "servizi assicurativi", "consulenza tecnica"};
+
+    private long lots;
+    private long seed;
+    private int suppliers;
+    private int authorities;
+    private int firstYear;
+    private int lastYear;
+    private double zipfExponent;
+    private double noiseRate;
+    private double errorRate;
+    private double groupRate;
+
+    private Random random;
+    private MessageDigest sha1;
+    private JsonFactory jsonFactory = new JsonFactory();
+
+    private String[] supplierIds;
+    private String[] supplierNames;
+    private byte[] supplierKinds;
+    private double[] supplierCdf;
+    private String[] authorityIds;
+    private String[] authorityNames;
+    private double[] authorityCdf;
+    private double[] procedureCdf;
+
+    private static final byte ITALIAN = 0;
+    private static final byte FOREIGN = 1;
+    private static final byte INVALID_ID = 2;
+
+    public SyntheticCorpusGenerator(long lots, long seed, int suppliers, int authorities, int firstYear, int lastYear,
+                                    double zipfExponent, double noiseRate, double errorRate, double groupRate) {
+        this.lots = lots;
+        this.seed = seed;
+        this.suppliers = suppliers;
+        this.authorities = authorities;
+        this.firstYear = firstYear;
+        this.lastYear = lastYear;
+        this.zipfExponent = zipfExponent;
+        this.noiseRate = noiseRate;
+        this.errorRate = errorRate;
+        this.groupRate = groupRate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: SyntheticCorpusGenerator <outputDir> [--lots <n>] [--seed <seed>] [--suppliers <n>]"
+                    + " [--authorities <n>] [--years <first>-<last>] [--zipf <exponent>] [--noise <rate>]"
+                    + " [--error-rate <rate>] [--group-rate <rate>]");
+            System.exit(1);
+        }
+        SyntheticCorpusGenerator generator = fromOptions(options);
+        long startTime = System.currentTimeMillis();
+        generator.generate(new File(options.getPositional().get(0)));
+        System.out.println(generator.lots + " lots written in " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+    }
+
+    static SyntheticCorpusGenerator fromOptions(CommandLineOptions options) {
+        long lots = options.getLong("lots", 10000);
+        String[] years = options.get("years", "2012-2016").split("-");
+        return new SyntheticCorpusGenerator(lots,
+                options.getLong("seed", 42),
+                options.getInt("suppliers", (int) Math.max(200, Math.min(lots / 4, 2000000))),
+                options.getInt("authorities", (int) Math.max(20, Math.min(lots / 200, 30000))),
+                Integer.parseInt(years[0]), Integer.parseInt(years[years.length - 1]),
+                Double.parseDouble(options.get("zipf", "0.8")),
+                Double.parseDouble(options.get("noise", "0.15")),
+                Double.parseDouble(options.get("error-rate", "0.05")),
+                Double.parseDouble(options.get("group-rate", "0.04")));
+    }
+
+    /**
+     * The parameters that determine the content of the corpus
+     */
+    public Properties parameters() {
+        Properties parameters = new Properties();
+        parameters.setProperty("lots", String.valueOf(lots));
+        parameters.setProperty("seed", String.valueOf(seed));
+        parameters.setProperty("suppliers", String.valueOf(suppliers));
+        parameters.setProperty("authorities", String.valueOf(authorities));
+        parameters.setProperty("years", firstYear + "-" + lastYear);
+        parameters.setProperty("zipf", String.valueOf(zipfExponent));
+        parameters.setProperty("noise", String.valueOf(noiseRate));
+        parameters.setProperty("errorRate", String.valueOf(errorRate));
+        parameters.setProperty("groupRate", String.valueOf(groupRate));
+        return parameters;
+    }
+
+    public void generate(File outputDir) throws IOException {
+        random = new Random(seed);
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        createSuppliers();
+        createAuthorities();
+        procedureCdf = cumulative(PROCEDURE_WEIGHTS);
+
+        File lotsDir = new File(outputDir, "lots");
+        Set<String> createdDirs = new HashSet<>();
+        for (long i = 0; i < lots; i++) {
+            int year = firstYear + random.nextInt(lastYear - firstYear + 1);
+            int authority = sample(authorityCdf);
+            String cig = cig(i);
+            String dir = year + "/" + authorityIds[authority];
+            if (createdDirs.add(dir)) {
+                new File(lotsDir, dir).mkdirs();
+            }
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(lotsDir, dir + "/" + cig + ".json")), 8192)) {
+                writeLot(out, cig, year, authority);
+            }
+            if ((i + 1) % 100000 == 0) {
+                System.out.println("Written " + (i + 1) + " lots...");
+            }
+        }
+        writeProposingStructures(new File(outputDir, "proposingStructures.json"));
+        try (OutputStream out = new FileOutputStream(new File(outputDir, "corpus.properties"))) {
+            parameters().store(out, "SyntheticCorpusGenerator");
+        }
+    }
+
+    private void writeLot(OutputStream out, String cig, int year, int authority) throws IOException {
+        JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+        boolean hasError = random.nextDouble() < errorRate;
+        int brokenField = hasError ? random.nextInt(3) : -1;
+        String procedure = PROCEDURES[sample(procedureCdf)];
+        double amount = Math.exp(9.5 + 1.6 * random.nextGaussian());
+        double paid = random.nextDouble() < 0.3 ? 0 : amount * (0.5 + 0.6 * random.nextDouble());
+        int startDay = random.nextInt(365);
+        int duration = 1 + random.nextInt(720);
+
+        // Participants: mostly one for direct awards, more for competitive procedures
+        int participants = procedure.startsWith("23") || procedure.startsWith("24") ? 1 : 1 + geometric(0.45);
+        if (random.nextDouble() < 0.03) {
+            participants = 0;
+        }
+        List<int[]> bidders = new ArrayList<>();
+        for (int p = 0; p < participants; p++) {
+            if (random.nextDouble() < groupRate) {
+                int[] members = new int[2 + random.nextInt(3)];
+                for (int m = 0; m < members.length; m++) {
+                    members[m] = sample(supplierCdf);
+                }
+                bidders.add(members);
+            } else {
+                bidders.add(new int[] {sample(supplierCdf)});
+            }
+        }
+        int winner = bidders.isEmpty() || random.nextDouble() < 0.02 ? -1 : random.nextInt(bidders.size());
+
+        json.writeStartObject();
+        json.writeArrayFieldStart("aggiudicatari");
+        if (winner >= 0) {
+            writeBidder(json, cig, winner, bidders.get(winner), true);
+        }
+        json.writeEndArray();
+        boolean cigValid = random.nextDouble() >= 0.01;
+        json.writeStringField("cig", cig);
+        json.writeStringField("cigValid", String.valueOf(cigValid));
+        if (!cigValid) {
+            json.writeStringField("cigHash", hash("cig" + cig));
+        }
+        if (brokenField == 0) {
+            json.writeStringField("importoAggiudicazione", "");
+            json.writeStringField("importoAggiudicazioneOriginale", noisyAmount(amount));
+        } else {
+            json.writeStringField("importoAggiudicazione", String.format(Locale.ROOT, "%.2f", amount));
+        }
+        json.writeStringField("importoSommeLiquidate", String.format(Locale.ROOT, "%.2f", paid));
+        json.writeStringField("oggetto", OBJECTS[random.nextInt(OBJECTS.length)] + " " + GOODS[random.nextInt(GOODS.length)]
+                + " - lotto " + (1 + random.nextInt(20)));
+        json.writeArrayFieldStart("partecipanti");
+        for (int p = 0; p < bidders.size(); p++) {
+            writeBidder(json, cig, p, bidders.get(p), false);
+        }
+        json.writeEndArray();
+        if (brokenField == 1) {
+            json.writeStringField("sceltaContraente", "");
+            json.writeStringField("sceltaContraenteOriginal", procedure.substring(3).toLowerCase(Locale.ROOT));
+        } else {
+            json.writeStringField("sceltaContraente", procedure);
+        }
+        json.writeArrayFieldStart("strutturaProponente");
+        json.writeStartObject();
+        json.writeStringField("codiceFiscaleProp", authorityIds[authority]);
+        json.writeStringField("denominazione", authorityNames[authority]);
+        json.writeEndObject();
+        json.writeEndArray();
+        json.writeObjectFieldStart("tempiCompletamento");
+        if (brokenField == 2) {
+            json.writeStringField("dataInizio", "");
+            json.writeStringField("dataInizioOriginale", String.format(Locale.ROOT, "%02d/%02d/%d", 1 + startDay % 28, 1 + startDay / 31, year));
+        } else {
+            json.writeStringField("dataInizio", date(year, startDay));
+        }
+        json.writeStringField("dataUltimazione", date(year, startDay + duration));
+        json.writeEndObject();
+        json.writeArrayFieldStart("errors");
+        if (brokenField == 0) {
+            json.writeString("importoAggiudicazione non valido");
+        } else if (brokenField == 1) {
+            json.writeString("sceltaContraente non valida");
+        } else if (brokenField == 2) {
+            json.writeString("dataInizio non valida");
+        }
+        json.writeEndArray();
+        json.writeStringField("annoRiferimento", String.valueOf(year));
+        json.writeStringField("cfStrutturaProponenteANAC", authorityIds[authority]);
+        json.writeEndObject();
+        json.flush();
+    }
+
+    private void writeBidder(JsonGenerator json, String cig, int index, int[] members, boolean winner) throws IOException {
+        if (members.length == 1) {
+            json.writeStartObject();
+            writeSupplier(json, members[0]);
+            json.writeStringField("type", winner ? "aggiudicatario" : "partecipante");
+            json.writeEndObject();
+            return;
+        }
+        json.writeStartObject();
+        json.writeStringField("type", winner ? "aggiudicatarioRaggruppamento" : "raggruppamento");
+        json.writeStringField("groupHash", hash("group" + cig + "_" + index));
+        json.writeArrayFieldStart("raggruppamento");
+        for (int m = 0; m < members.length; m++) {
+            json.writeStartObject();
+            writeSupplier(json, members[m]);
+            json.writeStringField("ruolo", m == 0 ? "02-MANDATARIA" : "01-MANDANTE");
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+    private void writeSupplier(JsonGenerator json, int supplier) throws IOException {
+        String name = noisyName(supplierNames[supplier]);
+        switch (supplierKinds[supplier]) {
+            case FOREIGN:
+                json.writeStringField("identificativoFiscaleEstero", supplierIds[supplier]);
+                break;
+            case INVALID_ID:
+                json.writeStringField("codiceFiscale", "00000000000");
+                json.writeStringField("companyHash", hash(name));
+                break;
+            default:
+                json.writeStringField("codiceFiscale", supplierIds[supplier]);
+                break;
+        }
+        json.writeStringField("ragioneSociale", name);
+    }
+
+    private void writeProposingStructures(File file) throws IOException {
+        try (JsonGenerator json = jsonFactory.createGenerator(file, JsonEncoding.UTF8)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartArray();
+            for (int a = 0; a < authorities; a++) {
+                json.writeStartObject();
+                json.writeStringField("name", authorityNames[a]);
+                json.writeStringField("vatId", authorityIds[a]);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+    }
+
+    private void createSuppliers() {
+        supplierIds = new String[suppliers];
+        supplierNames = new String[suppliers];
+        supplierKinds = new byte[suppliers];
+        Set<String> ids = new HashSet<>();
+        for (int s = 0; s < suppliers; s++) {
+            double kind = random.nextDouble();
+            if (kind < 0.03) {
+                supplierKinds[s] = FOREIGN;
+                String country = COUNTRIES[random.nextInt(COUNTRIES.length)];
+                do {
+                    supplierIds[s] = country + (100000000 + random.nextInt(900000000));
+                } while (!ids.add(supplierIds[s]));
+                supplierNames[s] = SURNAMES[random.nextInt(SURNAMES.length)] + " " + SECTORS[random.nextInt(SECTORS.length)]
+                        + " " + FOREIGN_FORMS[random.nextInt(FOREIGN_FORMS.length)];
+            } else {
+                supplierKinds[s] = kind < 0.05 ? INVALID_ID : ITALIAN;
+                do {
+                    supplierIds[s] = vatNumber();
+                } while (!ids.add(supplierIds[s]));
+                supplierNames[s] = PREFIXES[random.nextInt(PREFIXES.length)] + SECTORS[random.nextInt(SECTORS.length)]
+                        + " " + SURNAMES[random.nextInt(SURNAMES.length)]
+                        + (random.nextBoolean() ? " " + CITIES[random.nextInt(CITIES.length)] : "")
+                        + " " + LEGAL_FORMS[random.nextInt(LEGAL_FORMS.length)];
+            }
+        }
+        supplierCdf = zipf(suppliers);
+    }
+
+    private void createAuthorities() {
+        authorityIds = new String[authorities];
+        authorityNames = new String[authorities];
+        Set<String> ids = new HashSet<>();
+        for (int a = 0; a < authorities; a++) {
+            do {
+                authorityIds[a] = vatNumber();
+            } while (!ids.add(authorityIds[a]));
+            authorityNames[a] = AUTHORITY_TYPES[random.nextInt(AUTHORITY_TYPES.length)] + CITIES[random.nextInt(CITIES.length)]
+                    + (a >= CITIES.length ? " " + (a / CITIES.length) : "");
+        }
+        authorityCdf = zipf(authorities);
+    }
+
+    /**
+     * A different spelling of a name: case, legal form, punctuation, spaces or a typo
+     */
+    private String noisyName(String name) {
+        if (random.nextDouble() >= noiseRate) {
+            return name;
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                return name.charAt(0) + name.substring(1).toLowerCase(Locale.ROOT);
+            case 1:
+                return name.replace(".", "");
+            case 2:
+                return name.replace("S.R.L.", "SRL").replace("S.P.A.", "SPA").replace("SOC. COOP.", "SOCIETA' COOPERATIVA");
+            case 3:
+                return name + " ";
+            case 4:
+                return name.replace(" ", "  ");
+            default:
+                int i = 1 + random.nextInt(Math.max(1, name.length() - 2));
+                char[] chars = name.toCharArray();
+                char c = chars[i];
+                chars[i] = chars[i - 1];
+                chars[i - 1] = c;
+                return new String(chars);
+        }
+    }
+
+    private String noisyAmount(double amount) {
+        return String.format(Locale.ITALY, "%,.2f", amount) + (random.nextBoolean() ? " euro" : "");
+    }
+
+    /**
+     * An 11 digit partita IVA with a valid check digit
+     */
+    private String vatNumber() {
+        int[] digits = new int[11];
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            digits[i] = random.nextInt(10);
+            int d = digits[i];
+            if (i % 2 == 1) {
+                d *= 2;
+                if (d > 9) {
+                    d -= 9;
+                }
+            }
+            sum += d;
+        }
+        digits[10] = (10 - sum % 10) % 10;
+        StringBuilder sb = new StringBuilder(11);
+        for (int d : digits) {
+            sb.append(d);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A distinct 10 character CIG for every lot index (a bijection of the index on 40 bits)
+     */
+    private String cig(long index) {
+        long mixed = ((index + seed) * 0x9E3779B97BL) & 0xFFFFFFFFFFL;
+        return String.format("%010X", mixed);
+    }
+
+    private static String date(int year, int dayOfYear) {
+        return LocalDate.ofYearDay(year, 1).plusDays(dayOfYear).toString();
+    }
+
+    private String hash(String value) {
+        byte[] digest = sha1.digest(value.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private int geometric(double p) {
+        int n = 0;
+        while (random.nextDouble() > p && n < 30) {
+            n++;
+        }
+        return n;
+    }
+
+    private double[] zipf(int size) {
+        double[] weights = new double[size];
+        for (int rank = 0; rank < size; rank++) {
+            weights[rank] = 1 / Math.pow(rank + 1, zipfExponent);
+        }
+        return cumulative(weights);
+    }
+
+    private static double[] cumulative(double[] weights) {
+        double[] cdf = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cdf[i] = total;
+        }
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    private int sample(double[] cdf) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+    }
+}
@@ -0,0 +1,138 @@
+package it.polito.nexa.pc.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.services.TriplificationService;
+import it.polito.nexa.pc.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.RegexFileFilter;
+
+/**
+ * Closed-loop load test of the triplification endpoint: a number of clients post the JSON
+ * files of a directory, round robin, as fast as the service answers. After a warm-up the
+ * throughput and the latency percentiles of the measured requests are reported.
+ */
+public class TriplificationLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: TriplificationLoadTest <JSON file or directory> [--url <url>] [--embedded]"
+                    + " [--concurrency <clients>] [--requests <n>] [--warmup <n>]");
+            System.exit(1);
+        }
+        String url = options.get("url", "http://localhost:8082/triplify");
+        int concurrency = options.getInt("concurrency", 16);
+        int requests = options.getInt("requests", 10000);
+        int warmup = options.getInt("warmup", 1000);
+
+        List<byte[]> bodies = readBodies(options.getPositional().get(0));
+        System.out.println(bodies.size() + " request bodies loaded");
+
+        HttpServer server = null;
+        if (options.has("embedded")) {
+            // Service and clients in the same JVM, as a quick local check
+            server = new TriplificationService(10 * 1024 * 1024).start(new URL(url).getPort(),
+                    options.getInt("threads", 2 * Runtime.getRuntime().availableProcessors()));
+        }
+
+        run(url, bodies, concurrency, warmup, new LatencyHistogram(), new AtomicLong(), new AtomicLong());
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+        run(url, bodies, concurrency, requests, latency, errors, bytes);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%d requests with %d clients in %.2f s: %.1f requests/s, %.1f MB/s of RDF",
+                requests, concurrency, seconds, requests / seconds, bytes.get() / seconds / (1024 * 1024)));
+        System.out.println("Latency " + latency.summary() + ", errors " + errors.get());
+        if (server != null) {
+            server.stop(0);
+            System.exit(0);
+        }
+    }
+
+    private static void run(final String url, final List<byte[]> bodies, int concurrency, final int requests,
+                            final LatencyHistogram latency, final AtomicLong errors, final AtomicLong bytes) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for (int c = 0; c < concurrency; c++) {
+            clients.submit(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16 * 1024];
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                            connection.setRequestMethod("POST");
+                            connection.setDoOutput(true);
+                            connection.setRequestProperty("Content-Type", "application/json");
+                            byte[] body = bodies.get(i % bodies.size());
+                            connection.setFixedLengthStreamingMode(body.length);
+                            try (OutputStream out = connection.getOutputStream()) {
+                                out.write(body);
+                            }
+                            if (connection.getResponseCode() != 200) {
+                                errors.incrementAndGet();
+                            }
+                            InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+                            if (in != null) {
+                                try {
+                                    int read;
+                                    while ((read = in.read(buffer)) != -1) {
+                                        bytes.addAndGet(read);
+                                    }
+                                } finally {
+                                    in.close();
+                                }
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latency.recordSince(start);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    private static List<byte[]> readBodies(String path) throws IOException {
+        File file = new File(path);
+        Collection<File> files = file.isDirectory()
+                ? FileUtils.listFiles(file, new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY)
+                : Collections.singletonList(file);
+        List<byte[]> bodies = new ArrayList<>();
+        for (File json : files) {
+            String name = json.getName();
+            if (!name.equals("stats.json") && !name.startsWith("proposingStructure") && !name.contains("_index")) {
+                bodies.add(Files.readAllBytes(json.toPath()));
+            }
+        }
+        return bodies;
+    }
+}
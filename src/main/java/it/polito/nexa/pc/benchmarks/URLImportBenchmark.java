@@ -0,0 +1,175 @@
+package it.polito.nexa.pc.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.importers.BulkURLImporter;
+import it.polito.nexa.pc.importers.DefaultJSONImporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.RegexFileFilter;
+
+/**
+ * Compares the serial URL mode of DefaultJSONImporter with BulkURLImporter against a local stub
+ * server that publishes the JSON files of a directory with ETag, Last-Modified and gzip support,
+ * and adds a fixed delay to every response to stand for the network round trip.
+ *
+ * Three passes are timed: the serial importer, a first bulk download and a second bulk run in
+ * which every document is unchanged. The number of connections opened in each pass is counted
+ * by the stub from the client addresses.
+ */
+public class URLImportBenchmark {
+
+    private static Map<String, byte[]> documents = new ConcurrentHashMap<>();
+    private static Map<String, String> etags = new ConcurrentHashMap<>();
+    private static Set<String> connections = ConcurrentHashMap.newKeySet();
+    private static String lastModified;
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: URLImportBenchmark <JSON directory> [--port <port>] [--delay-ms <ms>]"
+                    + " [--concurrency <n>] [--output <dir>]");
+            System.exit(1);
+        }
+        int port = options.getInt("port", 18090);
+        final long delay = options.getLong("delay-ms", 5);
+        int concurrency = options.getInt("concurrency", 8);
+        File outputDir = new File(options.get("output", System.getProperty("java.io.tmpdir") + "/url-import-benchmark"));
+        FileUtils.deleteDirectory(outputDir);
+
+        Collection<File> files = FileUtils.listFiles(new File(options.getPositional().get(0)),
+                new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY);
+        List<String> urls = new ArrayList<>();
+        for (File file : files) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            documents.put(file.getName(), content);
+            etags.put(file.getName(), "\"" + sha1(content) + "\"");
+            urls.add("http://localhost:" + port + "/docs/" + file.getName());
+        }
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        lastModified = httpDate.format(new Date());
+
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/docs/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, delay);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(64));
+        server.start();
+        System.out.println(urls.size() + " documents served with " + delay + " ms of delay");
+
+        connections.clear();
+        long start = System.nanoTime();
+        DefaultJSONImporter dji = new DefaultJSONImporter();
+        long bytes = 0;
+        for (String url : urls) {
+            bytes += dji.getJSON(url, "URL").length();
+        }
+        report("Serial DefaultJSONImporter", start, urls.size() + " documents, " + bytes / 1024 + " KB");
+
+        BulkURLImporter importer = new BulkURLImporter(outputDir, new File(outputDir, "url-cache"), concurrency);
+        connections.clear();
+        start = System.nanoTime();
+        importer.fetchAll(urls);
+        report("Bulk first run (" + concurrency + " concurrent)", start, importer.summary());
+
+        importer = new BulkURLImporter(outputDir, new File(outputDir, "url-cache"), concurrency);
+        connections.clear();
+        start = System.nanoTime();
+        importer.fetchAll(urls);
+        report("Bulk second run (" + concurrency + " concurrent)", start, importer.summary());
+
+        int mismatches = 0;
+        for (Map.Entry<String, byte[]> document : documents.entrySet()) {
+            File downloaded = new File(outputDir, BulkURLImporter.fileName("http://localhost:" + port + "/docs/" + document.getKey()));
+            if (!downloaded.exists() || !java.util.Arrays.equals(Files.readAllBytes(downloaded.toPath()), document.getValue())) {
+                mismatches++;
+            }
+        }
+        System.out.println("Documents differing from the source: " + mismatches);
+        server.stop(0);
+        System.exit(0);
+    }
+
+    private static void report(String pass, long startNanos, String details) {
+        System.out.println(String.format("%-36s %7d ms, %4d connections: %s", pass,
+                (System.nanoTime() - startNanos) / 1000000, connections.size(), details));
+    }
+
+    private static void serve(HttpExchange exchange, long delay) throws IOException {
+        connections.add(exchange.getRemoteAddress().toString());
+        // The server keeps the connection alive after a response without body only if the
+        // request has been read to the end
+        exchange.getRequestBody().close();
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            // Answer immediately
+        }
+        String name = exchange.getRequestURI().getPath().substring("/docs/".length());
+        byte[] content = documents.get(name);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", etags.get(name));
+        exchange.getResponseHeaders().set("Last-Modified", lastModified);
+        if (etags.get(name).equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(content);
+            }
+            content = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private static String sha1(byte[] content) throws NoSuchAlgorithmException {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
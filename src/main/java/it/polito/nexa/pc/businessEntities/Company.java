@@ -15,6 +15,8 @@ public class Company {
 	private boolean italian; 
 	private HashMap<String, Integer> names = new HashMap<>(); 
 	private HashMap<String, Integer> originalIds = new HashMap<>(); 
+	// computed by getBestLabel() and kept until the names change
+	private String bestLabel; 
 	
 	public Company(String id, String name,  boolean isItalian) {
 		super();
@@ -35,6 +37,15 @@ public class Company {
 		return !originalIds.isEmpty(); 
 	}
 
+	/*
+	 * empty company, filled by merge() when the aggregates of
+	 * several runs are combined
+	 * */
+	Company(String id, boolean isItalian) {
+		this.id = id;
+		this.italian = isItalian;
+	}
+
 	public Company( String id,String name, boolean isItalian, String originalId ) {
 		super();
 		this.id = id;
@@ -44,7 +55,8 @@ public class Company {
 	}
 	
 	public void addName(String name){
-		if ((names.containsKey(name) && (name.length()>1))){
+		bestLabel = null; 
+		if ((names.containsKey(name.toUpperCase()) && (name.length()>1))){
 			names.put(name.toUpperCase(), names.get(name.toUpperCase())+1); 
 		} 	
 		else
@@ -62,6 +74,22 @@ public class Company {
 			originalIds.put(originalId, 1);	
 	}
 	
+	HashMap<String, Integer> getOriginalIdCounts(){
+		return originalIds; 
+	}
+	
+	/*
+	 * adds the name and original id counts of the same company
+	 * found by another run
+	 * */
+	void merge(Company other){
+		bestLabel = null; 
+		for (Entry<String, Integer> e : other.names.entrySet())
+			names.merge(e.getKey(), e.getValue(), Integer::sum); 
+		for (Entry<String, Integer> e : other.originalIds.entrySet())
+			originalIds.merge(e.getKey(), e.getValue(), Integer::sum); 
+	}
+	
 	public HashMap<String, Integer> getNames(){
 		return names; 
 	}
@@ -84,6 +112,19 @@ public class Company {
 	 * label frequency and Levensthein distances
 	 * */
 	public String getBestLabel(){
+		if (bestLabel == null) 
+			bestLabel = computeBestLabel(); 
+		return bestLabel; 
+	}
+	
+	/*
+	 * restores a label saved with the names it was computed from
+	 * */
+	void setBestLabel(String bestLabel){
+		this.bestLabel = bestLabel; 
+	}
+	
+	private String computeBestLabel(){
 		double similarity; 
 		HashMap<String, Double> comparedNames = new HashMap<>(); 
 		for (Entry e : names.entrySet()){
@@ -95,9 +136,12 @@ public class Company {
 			}
 			comparedNames.put((String)e.getKey(), similarity); 	
 		}
+		// ties go to the first name in alphabetical order, so that the label does not depend on
+		// the order of the map, which differs after a checkpoint is restored or shards are merged
 		return comparedNames.entrySet()
 				.stream()
-				.max(Comparator.comparing(e -> e.getValue()))
+				.max(Comparator.comparing((Entry<String, Double> e) -> e.getValue())
+						.thenComparing(Entry::getKey, Comparator.reverseOrder()))
 				.get()
 				.getKey(); 		
 	}
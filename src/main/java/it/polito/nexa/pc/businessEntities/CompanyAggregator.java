@@ -0,0 +1,306 @@
+package it.polito.nexa.pc.businessEntities;
+
+import it.polito.nexa.pc.importers.DefaultJSONImporter;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collector;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/*
+ * Collects the business entities (winners and participants) found in the
+ * ANAC JSON files. It is fed with already parsed records, so the same tree
+ * can be shared with the triplifiers in a single scan of the corpus.
+ */
+public class CompanyAggregator {
+	private HashMap<String, Company> companies = new HashMap<>();
+
+	/*
+	 * one mention of a company (winner, participant or member of a group) in a record
+	 */
+	public static class Contribution {
+		public final String id;
+		public final String name;
+		public final boolean italian;
+		public final String originalId;
+
+		public Contribution(String id, String name, boolean italian, String originalId) {
+			this.id = id;
+			this.name = name;
+			this.italian = italian;
+			this.originalId = originalId;
+		}
+	}
+
+	/*
+	 * accepts both the files with a "data"/"lotto" array and
+	 * the files describing a single lot
+	 */
+	public void addJson(JsonNode rootNode){
+		for (Contribution contribution : contributions(rootNode)) add(contribution);
+	}
+
+	public void addRecord(JsonNode record){
+		List<Contribution> contributions = new ArrayList<>();
+		addRecord(record, contributions);
+		for (Contribution contribution : contributions) add(contribution);
+	}
+
+	/*
+	 * the companies mentioned by a file, in the order in which they are added
+	 */
+	public static List<Contribution> contributions(JsonNode rootNode){
+		List<Contribution> contributions = new ArrayList<>();
+		JsonNode data = rootNode.get("data");
+		if (data != null) {
+			JsonNode lots = data.get("lotto");
+			if (lots != null)
+				for (JsonNode record : lots) addRecord(record, contributions);
+		}
+		else addRecord(rootNode, contributions);
+		return contributions;
+	}
+
+	private static void addRecord(JsonNode record, List<Contribution> contributions){
+    	if(getValue("aggiudicatari",record) != null) {
+            JsonNode winners = record.get("aggiudicatari");
+            if (winners != null){
+            	for (JsonNode winner:winners){
+            		if(getValue("type", winner).equals("aggiudicatario")) {
+            			contributions.add(contribution(winner));
+            		}
+            		if(getValue("type", winner).equals("aggiudicatarioRaggruppamento")) {
+                		addGroup(winner, contributions);
+                	}
+            	}
+            }
+    	}
+        if(getValue("partecipanti",record) != null) {
+            JsonNode participants = record.get("partecipanti");
+            if (participants != null){
+            	for (JsonNode participant:participants){
+            		if(getValue("type",  participant).equals("partecipante")) {
+                		contributions.add(contribution(participant));
+                	}
+            		if(getValue("type",  participant).equals("raggruppamento")) {
+                		addGroup(participant, contributions);
+                	}
+            	}
+            }
+        }
+	}
+
+	/*
+	 * removes from the label list all the vatId which belong to a public administration
+	 * which are already present in the proposingStructure.json file
+	 */
+	public void removePA(String proposingStructuresFile){
+		try {
+			String id;
+			DefaultJSONImporter dji = new DefaultJSONImporter();
+			String psJson = dji.getJSON(proposingStructuresFile, "FILE");
+			ObjectMapper mapper = new ObjectMapper();
+
+            JsonNode rootNode = mapper.readValue(psJson, JsonNode.class);
+            for (JsonNode pa : rootNode){
+            	id= pa.get("vatId").textValue();
+            	if (companies.containsKey(id)) {
+            		companies.remove(id);
+            	}
+            }
+		} catch (Exception e){
+			System.out.println("Errore nella letutra delle strutture proponenti (PA)");
+			System.out.println(e.getMessage());
+		}
+	}
+
+	public Collection<Company> getCompanies(){
+		return companies.values();
+	}
+
+	public int size(){
+		return companies.size();
+	}
+
+	public LinkedList<HashMap<String, Object>> toBusinessEntities(){
+		return companies.values()
+        		.stream()
+        		.collect(Collector.of(() -> new LinkedList<HashMap<String, Object>>(), (list, company) ->
+	        		{
+	                	HashMap <String, Object> res = new HashMap<>();
+	                	res.put("id", company.getId());
+	                	if (company.hasOriginalId())
+	                		res.put("originalId", company.getOriginalIds());
+	                	res.put("name", company.getBestLabel());
+	                	res.put("isItalian", company.isItalian());
+	                	list.add(res);
+	                 } ,
+                (j1, j2) ->
+	                 {
+	                	 j1.addAll(j2);
+	                	 return j1;
+	                 }
+	                 )
+        				);
+	}
+
+	/*
+	 * writes the list of companies to a json file
+	 */
+	public void writeBusinessEntities(File output) throws IOException {
+		ObjectMapper mapper =  new ObjectMapper().configure(SerializationFeature.INDENT_OUTPUT, true);
+		LinkedList<HashMap<String, Object>> businessEntities;
+		try (Span span = Profiling.begin(Stage.LABELS)) {
+			businessEntities = toBusinessEntities();
+			span.path(output.getPath()).entities(businessEntities.size());
+		}
+		mapper.writeValue(output, businessEntities);
+	}
+
+	/*
+	 * adds the companies found by another aggregator, e.g. by another shard
+	 */
+	public void merge(CompanyAggregator other){
+		for (Company company : other.companies.values()) mergeCompany(company);
+	}
+
+	/*
+	 * writes the companies with their name and original id counts,
+	 * so that the aggregate can be merged later with mergeSnapshot()
+	 */
+	public void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(companies.size());
+		for (Company company : companies.values()){
+			out.writeUTF(company.getId());
+			out.writeBoolean(company.isItalian());
+			writeCounts(out, company.getNames());
+			writeCounts(out, company.getOriginalIdCounts());
+		}
+	}
+
+	public void mergeSnapshot(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++){
+			Company company = new Company(in.readUTF(), in.readBoolean());
+			readCounts(in, company.getNames());
+			readCounts(in, company.getOriginalIdCounts());
+			mergeCompany(company);
+		}
+	}
+
+	private void mergeCompany(Company company){
+		if (companies.containsKey(company.getId()))
+			companies.get(company.getId()).merge(company);
+		else {
+			Company copy = new Company(company.getId(), company.isItalian());
+			copy.merge(company);
+			companies.put(copy.getId(), copy);
+		}
+	}
+
+	private static void writeCounts(DataOutputStream out, Map<String, Integer> counts) throws IOException {
+		out.writeInt(counts.size());
+		for (Map.Entry<String, Integer> e : counts.entrySet()){
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	private static void readCounts(DataInputStream in, Map<String, Integer> counts) throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) counts.put(in.readUTF(), in.readInt());
+	}
+
+	private static String getValue (String string, JsonNode record) {
+        return record.get(string) != null ? record.get(string).asText() : "";
+	}
+
+	private static Contribution contribution(JsonNode record){
+		String id;
+		String name= getValue("ragioneSociale", record);
+		Boolean isItalian=false;
+		String originalId="";
+		if(getValue("companyHash", record) != "") {
+            id = getValue("companyHash", record);
+            if(getValue("codiceFiscale", record) != "") {
+            	originalId = getValue("codiceFiscale", record);
+            	isItalian = true;
+                }
+            if(getValue("identificativoFiscaleEstero", record) != "") {
+                originalId = getValue("identificativoFiscaleEstero", record);
+                isItalian = false;
+                }
+        }
+		else {
+        	if (getValue("codiceFiscale", record)!=""){
+        		id = getValue("codiceFiscale", record);
+        		isItalian=true;
+        		}
+        	else {
+        		id = getValue("identificativoFiscaleEstero", record);
+        		isItalian=false;
+        		}
+        }
+		return new Contribution(id, name, isItalian, originalId);
+	}
+
+	/*
+	 * adds a company to the list, or its name and original id to the company with the same id
+	 */
+	void add(Contribution contribution){
+		String id = contribution.id;
+		String name = contribution.name;
+		String originalId = contribution.originalId;
+		boolean isItalian = contribution.italian;
+		if (originalId.equals("")){
+			if (companies.containsKey(id))
+				companies.get(id).addName(name);
+				else companies.put(id, new Company(id, name, isItalian));
+		}
+		else{
+			if (companies.containsKey(id)) {
+				companies.get(id).addName(name);
+				companies.get(id).addOriginalId(originalId);
+				}
+			else companies.put(id, new Company(id, name, isItalian, originalId));
+		}
+	}
+
+	/*
+	 * builds a company again from all its contributions, in the order of a full scan
+	 */
+	void rebuild(String id, List<Contribution> contributions){
+		companies.remove(id);
+		for (Contribution contribution : contributions) add(contribution);
+	}
+
+	Company getCompany(String id){
+		return companies.get(id);
+	}
+
+	void putCompany(Company company){
+		companies.put(company.getId(), company);
+	}
+
+	private static void addGroup(JsonNode record, List<Contribution> contributions){
+		JsonNode members ;
+		if (record.has("aggiudicatarioRaggruppamento"))
+			members =record.get("aggiudicatarioRaggruppamento");
+		else  members =record.get("raggruppamento");
+		if (members!=null)
+			for (JsonNode member:members) contributions.add(contribution(member));
+
+	}
+}
@@ -0,0 +1,307 @@
+package it.polito.nexa.pc.businessEntities;
+
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+import it.polito.nexa.pc.triplifiers.PropStructLabelsTriplifier;
+import it.polito.nexa.pc.util.Hashing;
+import it.polito.nexa.pc.util.LongHashSet;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+ * Finds business entities that are probably the same company under different ids
+ * (for instance a companyHash computed from a misspelled name and a codiceFiscale),
+ * comparing their best labels without looking at every pair.
+ *
+ * A label is normalized to its letters and digits, so that case, spaces, punctuation and
+ * dotted legal forms do not matter, and entities with the same normalized label are linked
+ * to the first of them directly. Each distinct label is then described by the set of its
+ * character 3-grams and by a MinHash signature of bands * rows values; two labels whose
+ * signatures agree on all the rows of at least one band (LSH banding) become candidates,
+ * and a candidate is kept when the Jaccard similarity of the 3-gram sets reaches the
+ * threshold. With 16 bands of 8 rows a pair with similarity 0.8 is found with probability
+ * 0.95, one with similarity 0.5 with probability 0.06.
+ *
+ * The bands are processed in passes: a pass holds one 8-byte key per label and band, so
+ * --same-as-memory-mb bounds the memory of the bucketing, and only that: the labels of all the
+ * entities and the 3-grams of all the distinct labels are kept for the whole resolution. Keys are computed, sorted and
+ * verified in parallel on all the cores. Buckets larger than MAX_BUCKET (very short or
+ * generic labels) are skipped, since they would cost a quadratic number of comparisons.
+ */
+public class EntityResolver {
+
+	private static int MAX_BUCKET = 1000;
+	private static String BASE_URI = "http://public-contracts.nexacenter.org/id/";
+
+	private double threshold;
+	private int bands;
+	private int rows;
+	private long memoryBytes;
+
+	private long[] seeds;
+	private long skippedBuckets = 0;
+	private long comparisons = 0;
+
+	public static class Candidate {
+		public final String id;
+		public final String sameAs;
+		public final double score;
+		public final String name;
+		public final String sameAsName;
+
+		Candidate(String id, String sameAs, double score, String name, String sameAsName) {
+			this.id = id;
+			this.sameAs = sameAs;
+			this.score = score;
+			this.name = name;
+			this.sameAsName = sameAsName;
+		}
+	}
+
+	public EntityResolver(double threshold, int bands, int rows, long memoryBytes) {
+		this.threshold = threshold;
+		this.bands = bands;
+		this.rows = rows;
+		this.memoryBytes = memoryBytes;
+		seeds = new long[bands * rows];
+		for (int i = 0; i < seeds.length; i++) seeds[i] = Hashing.fmix64(0x5DEECE66DL + i);
+	}
+
+	/*
+	 * returns null without --same-as
+	 */
+	public static EntityResolver fromOptions(CommandLineOptions options){
+		if (!options.has("same-as")) return null;
+		return new EntityResolver(Double.parseDouble(options.get("same-as-threshold", "0.8")),
+				options.getInt("same-as-bands", 16), options.getInt("same-as-rows", 8),
+				options.getLong("same-as-memory-mb", 256) * 1024 * 1024);
+	}
+
+	public List<Candidate> resolve(Collection<Company> companies){
+		List<Candidate> candidates = new ArrayList<>();
+		try (Span span = Profiling.begin(Stage.LABELS)) {
+			// Entities grouped by normalized label, in a deterministic order
+			TreeMap<String, List<Company>> groups = new TreeMap<>();
+			Map<Company, String> labels = companies.parallelStream()
+					.collect(Collectors.toConcurrentMap(c -> c, c -> c.getNames().isEmpty() ? "" : c.getBestLabel()));
+			for (Company company : companies) {
+				String normalized = normalize(labels.get(company));
+				if (normalized.length() > 0)
+					groups.computeIfAbsent(normalized, k -> new ArrayList<>()).add(company);
+			}
+			String[] names = groups.keySet().toArray(new String[0]);
+			Company[] representatives = new Company[names.length];
+			int i = 0;
+			for (List<Company> group : groups.values()) {
+				group.sort(Comparator.comparing(Company::getId));
+				representatives[i++] = group.get(0);
+				for (Company other : group.subList(1, group.size()))
+					candidates.add(new Candidate(group.get(0).getId(), other.getId(), 1.0,
+							labels.get(group.get(0)), labels.get(other)));
+			}
+
+			for (Match match : similarPairs(names)) {
+				Company a = representatives[match.a];
+				Company b = representatives[match.b];
+				candidates.add(new Candidate(a.getId(), b.getId(), match.score, labels.get(a), labels.get(b)));
+			}
+			span.entities(companies.size());
+		}
+		return candidates;
+	}
+
+	/*
+	 * letters and digits of the label, upper case
+	 */
+	static String normalize(String name){
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isLetterOrDigit(c)) sb.append(Character.toUpperCase(c));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * the sorted distinct 3-grams of a normalized label, each packed in a long
+	 */
+	static long[] shingles(String s){
+		if (s.length() < 3) return new long[] {pack(s, 0, s.length())};
+		long[] result = new long[s.length() - 2];
+		for (int i = 0; i < result.length; i++) result[i] = pack(s, i, i + 3);
+		Arrays.sort(result);
+		int size = 0;
+		for (int i = 0; i < result.length; i++)
+			if (size == 0 || result[size - 1] != result[i]) result[size++] = result[i];
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	private static long pack(String s, int from, int to){
+		long packed = 1;
+		for (int i = from; i < to; i++) packed = (packed << 16) | s.charAt(i);
+		return packed;
+	}
+
+	static double jaccard(long[] a, long[] b){
+		int i = 0, j = 0, common = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] == b[j]) {
+				common++;
+				i++;
+				j++;
+			}
+			else if (a[i] < b[j]) i++;
+			else j++;
+		}
+		return (double) common / (a.length + b.length - common);
+	}
+
+	private static class Match {
+		int a;
+		int b;
+		double score;
+
+		Match(int a, int b, double score) {
+			this.a = a;
+			this.b = b;
+			this.score = score;
+		}
+	}
+
+	/*
+	 * the pairs of distinct labels that share a bucket in at least one band
+	 * and whose similarity reaches the threshold, sorted by label
+	 */
+	private List<Match> similarPairs(String[] names){
+		int n = names.length;
+		List<Match> matches = new ArrayList<>();
+		if (n < 2) return matches;
+		long[][] shingles = new long[n][];
+		IntStream.range(0, n).parallel().forEach(i -> shingles[i] = shingles(names[i]));
+
+		// The low bits of a key hold the label, the high bits the hash of its band
+		int indexBits = 32 - Integer.numberOfLeadingZeros(n - 1);
+		long bandMask = -1L << indexBits;
+		int bandsPerPass = (int) Math.max(1, Math.min(bands, memoryBytes / (8L * n)));
+		LongHashSet found = new LongHashSet();
+		AtomicLong compared = new AtomicLong();
+		for (int first = 0; first < bands; first += bandsPerPass) {
+			int passBands = Math.min(bandsPerPass, bands - first);
+			int firstBand = first;
+			long[][] keys = new long[passBands][n];
+			IntStream.range(0, n).parallel().forEach(i -> {
+				for (int band = 0; band < passBands; band++)
+					keys[band][i] = (bandHash(shingles[i], firstBand + band) & bandMask) | i;
+			});
+			for (int band = 0; band < passBands; band++) {
+				long[] bandKeys = keys[band];
+				Arrays.parallelSort(bandKeys);
+				List<int[]> buckets = new ArrayList<>();
+				int start = 0;
+				for (int i = 1; i <= n; i++) {
+					if (i == n || (bandKeys[i] & bandMask) != (bandKeys[start] & bandMask)) {
+						if (i - start > MAX_BUCKET) skippedBuckets++;
+						else if (i - start > 1) buckets.add(new int[] {start, i});
+						start = i;
+					}
+				}
+				List<Match> bandMatches = buckets.parallelStream()
+						.flatMap(bucket -> verify(bandKeys, bucket[0], bucket[1], ~bandMask, shingles, compared).stream())
+						.collect(Collectors.toList());
+				for (Match match : bandMatches)
+					if (found.add(((long) match.a << 32) | match.b)) matches.add(match);
+				keys[band] = null;
+			}
+		}
+		comparisons += compared.get();
+		matches.sort(Comparator.comparingInt((Match m) -> m.a).thenComparingInt(m -> m.b));
+		return matches;
+	}
+
+	private List<Match> verify(long[] keys, int start, int end, long indexMask, long[][] shingles, AtomicLong compared){
+		List<Match> matches = new ArrayList<>();
+		for (int x = start; x < end; x++) {
+			for (int y = x + 1; y < end; y++) {
+				int a = (int) (keys[x] & indexMask);
+				int b = (int) (keys[y] & indexMask);
+				double score = jaccard(shingles[a], shingles[b]);
+				if (score >= threshold) matches.add(new Match(Math.min(a, b), Math.max(a, b), score));
+			}
+		}
+		compared.addAndGet((long) (end - start) * (end - start - 1) / 2);
+		return matches;
+	}
+
+	/*
+	 * hash of the MinHash values of the rows of a band
+	 */
+	private long bandHash(long[] shingles, int band){
+		long h = band;
+		for (int row = band * rows; row < (band + 1) * rows; row++) {
+			long seed = seeds[row];
+			long min = Long.MAX_VALUE;
+			for (long shingle : shingles) {
+				long value = Hashing.fmix64(shingle ^ seed);
+				if (value < min) min = value;
+			}
+			h = Hashing.fmix64(h ^ min) + row;
+		}
+		return h;
+	}
+
+	/*
+	 * resolves the companies and writes sameAsCandidates.tsv and sameAs.nt in the output directory
+	 */
+	public void publish(Collection<Company> companies, File outputDir){
+		System.out.println("Looking for business entities with different ids and similar names...");
+		List<Candidate> candidates = resolve(companies);
+		System.out.println(summary(candidates));
+		try {
+			outputDir.mkdirs();
+			writeCandidates(candidates, new File(outputDir, "sameAsCandidates.tsv"), new File(outputDir, "sameAs.nt"));
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/*
+	 * writes the candidates with their score as TSV and the owl:sameAs links as N-Triples
+	 */
+	public void writeCandidates(List<Candidate> candidates, File tsv, File triples) throws IOException {
+		PropStructLabelsTriplifier labels = new PropStructLabelsTriplifier();
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tsv), StandardCharsets.UTF_8));
+			 Writer nt = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(triples), StandardCharsets.UTF_8))) {
+			out.write("id\tsameAs\tscore\tname\tsameAsName\n");
+			for (Candidate c : candidates) {
+				out.write(c.id + "\t" + c.sameAs + "\t" + String.format(Locale.ROOT, "%.3f", c.score) + "\t"
+						+ c.name.replace('\t', ' ') + "\t" + c.sameAsName.replace('\t', ' ') + "\n");
+				nt.write("<" + BASE_URI + "businessEntities/" + labels.cleanString(c.id) + "> <http://www.w3.org/2002/07/owl#sameAs> <"
+						+ BASE_URI + "businessEntities/" + labels.cleanString(c.sameAs) + "> .\n");
+			}
+		}
+	}
+
+	public String summary(List<Candidate> candidates){
+		long exact = candidates.stream().filter(c -> c.score == 1.0 && normalize(c.name).equals(normalize(c.sameAsName))).count();
+		return String.format("%d sameAs candidates (%d with the same normalized name), %d label pairs compared, %d oversized buckets skipped",
+				candidates.size(), exact, comparisons, skippedBuckets);
+	}
+}
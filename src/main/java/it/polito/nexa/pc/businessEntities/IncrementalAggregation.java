@@ -0,0 +1,238 @@
+package it.polito.nexa.pc.businessEntities;
+
+import it.polito.nexa.pc.businessEntities.CompanyAggregator.Contribution;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/*
+ * Keeps the aggregated business entities between two runs of MainService, so that a refresh
+ * reads only the files added or changed since the previous one.
+ *
+ * The state file holds, for every input file, its size, its modification time and the
+ * companies it mentions (id, name, nationality, original id), and the aggregated companies
+ * with their name and original id counts and their best label. Strings are written once in
+ * a table and referenced by number. When a file is added, changed or removed, only the
+ * companies it mentions (before and after the change) are rebuilt, replaying their mentions
+ * in path order as a full scan of the sorted files would do, and only their best labels are
+ * computed again.
+ *
+ * The state is written to a temporary file and renamed, like the checkpoints.
+ */
+public class IncrementalAggregation {
+
+	private static int MAGIC = 0x42455331;
+	private static int VERSION = 1;
+
+	private static class FileEntry {
+		long size;
+		long modified;
+		List<Contribution> contributions;
+
+		FileEntry(long size, long modified, List<Contribution> contributions) {
+			this.size = size;
+			this.modified = modified;
+			this.contributions = contributions;
+		}
+	}
+
+	private File file;
+	private CompanyAggregator aggregator = new CompanyAggregator();
+	private TreeMap<String, FileEntry> files = new TreeMap<>();
+
+	private int added = 0;
+	private int changed = 0;
+	private int removed = 0;
+	private int rebuilt = 0;
+
+	public IncrementalAggregation(File file) {
+		this.file = file;
+	}
+
+	public CompanyAggregator getAggregator() {
+		return aggregator;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/*
+	 * brings the state up to date with the input files
+	 * @param reader parses a file, returns null when it cannot be read
+	 */
+	public void refresh(Collection<File> inputs, Function<String, JsonNode> reader){
+		Set<String> affected = new HashSet<>();
+		Set<String> present = new HashSet<>();
+		for (File input : inputs) {
+			String path = input.getPath();
+			present.add(path);
+			FileEntry entry = files.get(path);
+			if (entry != null && entry.size == input.length() && entry.modified == input.lastModified())
+				continue;
+			if (entry != null) {
+				for (Contribution c : entry.contributions) affected.add(c.id);
+				changed++;
+			}
+			else added++;
+			// A file that cannot be parsed is recorded without companies, and read again when it changes
+			JsonNode rootNode = reader.apply(path);
+			List<Contribution> contributions = rootNode != null ? CompanyAggregator.contributions(rootNode) : new ArrayList<>();
+			for (Contribution c : contributions) affected.add(c.id);
+			files.put(path, new FileEntry(input.length(), input.lastModified(), contributions));
+		}
+		List<String> gone = new ArrayList<>();
+		for (Map.Entry<String, FileEntry> e : files.entrySet()) {
+			if (!present.contains(e.getKey())) {
+				for (Contribution c : e.getValue().contributions) affected.add(c.id);
+				gone.add(e.getKey());
+			}
+		}
+		for (String path : gone) files.remove(path);
+		removed += gone.size();
+		if (affected.isEmpty()) return;
+
+		// The mentions of the affected companies, in path order
+		Map<String, List<Contribution>> mentions = new HashMap<>();
+		for (String id : affected) mentions.put(id, new ArrayList<>());
+		for (FileEntry entry : files.values())
+			for (Contribution c : entry.contributions) {
+				List<Contribution> list = mentions.get(c.id);
+				if (list != null) list.add(c);
+			}
+		for (Map.Entry<String, List<Contribution>> e : mentions.entrySet())
+			aggregator.rebuild(e.getKey(), e.getValue());
+		rebuilt = affected.size();
+	}
+
+	public String summary(){
+		return String.format("%d files added, %d changed, %d removed since the last run: %d business entities rebuilt",
+				added, changed, removed, rebuilt);
+	}
+
+	public void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a business entities state: " + file);
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++) strings[i] = in.readUTF();
+
+			int fileCount = in.readInt();
+			for (int i = 0; i < fileCount; i++) {
+				String path = strings[in.readInt()];
+				long size = in.readLong();
+				long modified = in.readLong();
+				int count = in.readInt();
+				List<Contribution> contributions = new ArrayList<>(count);
+				for (int j = 0; j < count; j++)
+					contributions.add(new Contribution(strings[in.readInt()], strings[in.readInt()], in.readBoolean(), strings[in.readInt()]));
+				files.put(path, new FileEntry(size, modified, contributions));
+			}
+
+			int companyCount = in.readInt();
+			for (int i = 0; i < companyCount; i++) {
+				Company company = new Company(strings[in.readInt()], in.readBoolean());
+				readCounts(in, strings, company.getNames());
+				readCounts(in, strings, company.getOriginalIdCounts());
+				int label = in.readInt();
+				if (label >= 0) company.setBestLabel(strings[label]);
+				aggregator.putCompany(company);
+			}
+		}
+	}
+
+	/*
+	 * writes the state, before the public administrations are removed from the aggregate
+	 */
+	public void save() throws IOException {
+		Map<String, Integer> table = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		for (Map.Entry<String, FileEntry> e : files.entrySet()) {
+			index(e.getKey(), table, strings);
+			for (Contribution c : e.getValue().contributions) {
+				index(c.id, table, strings);
+				index(c.name, table, strings);
+				index(c.originalId, table, strings);
+			}
+		}
+		for (Company company : aggregator.getCompanies()) {
+			index(company.getId(), table, strings);
+			for (String name : company.getNames().keySet()) index(name, table, strings);
+			for (String originalId : company.getOriginalIds()) index(originalId, table, strings);
+			if (!company.getNames().isEmpty()) index(company.getBestLabel(), table, strings);
+		}
+
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			for (String s : strings) out.writeUTF(s);
+
+			out.writeInt(files.size());
+			for (Map.Entry<String, FileEntry> e : files.entrySet()) {
+				out.writeInt(table.get(e.getKey()));
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().modified);
+				out.writeInt(e.getValue().contributions.size());
+				for (Contribution c : e.getValue().contributions) {
+					out.writeInt(table.get(c.id));
+					out.writeInt(table.get(c.name));
+					out.writeBoolean(c.italian);
+					out.writeInt(table.get(c.originalId));
+				}
+			}
+
+			out.writeInt(aggregator.size());
+			for (Company company : aggregator.getCompanies()) {
+				out.writeInt(table.get(company.getId()));
+				out.writeBoolean(company.isItalian());
+				writeCounts(out, table, company.getNames());
+				writeCounts(out, table, company.getOriginalIdCounts());
+				out.writeInt(company.getNames().isEmpty() ? -1 : table.get(company.getBestLabel()));
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void index(String s, Map<String, Integer> table, List<String> strings){
+		if (!table.containsKey(s)) {
+			table.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	private static void writeCounts(DataOutputStream out, Map<String, Integer> table, Map<String, Integer> counts) throws IOException {
+		out.writeInt(counts.size());
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			out.writeInt(table.get(e.getKey()));
+			out.writeInt(e.getValue());
+		}
+	}
+
+	private static void readCounts(DataInputStream in, String[] strings, Map<String, Integer> counts) throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) counts.put(strings[in.readInt()], in.readInt());
+	}
+}
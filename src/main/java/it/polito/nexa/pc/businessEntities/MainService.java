@@ -1,220 +1,158 @@
 package it.polito.nexa.pc.businessEntities;
 
+import it.polito.nexa.pc.CommandLineOptions;
 import it.polito.nexa.pc.importers.DefaultJSONImporter;
+import it.polito.nexa.pc.importers.FileIndex;
+import it.polito.nexa.pc.importers.SmileJSONCache;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+import it.polito.nexa.pc.triplifiers.PublicContractsTriplifier;
 import java.io.File;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.stream.Collector;
+import java.util.Collections;
+import java.util.List;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
 public class MainService {
-	private static HashMap<String, Company> companies = new HashMap<>(); 
-	private HashMap <String, Object> result = new HashMap<>(); 
+	private static CompanyAggregator aggregator = new CompanyAggregator(); 
 	private static String filesDirectory="download/"; 
 	
 	public static void main(String[] args) {
 		
+		CommandLineOptions options = new CommandLineOptions(args);
+		// The download directory can be given as the only positional argument
+		if (options.getPositional().size() == 1) {
+			filesDirectory = options.getPositional().get(0) + "/";
+		}
+		SmileJSONCache cache = options.has("cache") ? new SmileJSONCache(options.get("cache", filesDirectory + "json-cache")) : null;
+		
 		// Read all json files in the download directory 
         long startTime = System.currentTimeMillis();
         long endTime = 0;
         System.out.println("Reading all files in directory..."); 
         File dir = new File(filesDirectory);
-        Collection files = FileUtils.listFiles(dir, new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY);
+        Collection<File> files = FileUtils.listFiles(dir, new RegexFileFilter("([^\\s]+(\\.(?i)(json))$)"), DirectoryFileFilter.DIRECTORY);
+        files = FileIndex.applyFilters(dir, files, options);
         System.out.println("Files found: "+files.size());
-        Iterator itr = files.iterator();
         int processedFiles = 0;
         DefaultJSONImporter dji = new DefaultJSONImporter();
-       
-        //add all the companies found and relative labels to a list 
-        while (itr.hasNext()) {
-            String value = itr.next().toString();
-            Path path = Paths.get(value);
-            String fileName = path.getFileName().toString();
-            if(!fileName.equals("vecchi_bandi/businessEntities.json") &&!fileName.equals("stats.json") && !fileName.equals("proposingStructure.json")
+        
+        // Files are read in path order, the order in which the incremental state replays them
+        List<File> inputs = new ArrayList<>(); 
+        for (File file : files) {
+            String fileName = file.getName();
+            if(!fileName.equals("vecchi_bandi/businessEntities.json") && !fileName.equals("businessEntities.json") &&!fileName.equals("stats.json") && !fileName.equals("proposingStructure.json")
             		&& !fileName.equals("downloadInfo.json")&& !fileName.equals("downloadStats.json") && !fileName.contains("_index")){
-                String pcJson = dji.getJSON(value, "FILE");
-                companiesFromJson(pcJson); 
-                processedFiles += 1;
-                if (processedFiles %10000 == 0) {
-                    System.out.println("Processed " + processedFiles +" files");
-                }  
+            	inputs.add(file); 
             }
         }
+        Collections.sort(inputs); 
+       
+        if (options.has("incremental")) {
+        	// Only the files added, changed or removed since the previous run are read 
+        	if (options.has("year") || options.has("authority") || options.has("cig")) {
+        		System.err.println("--incremental cannot be combined with --year, --authority or --cig"); 
+        		System.exit(1); 
+        	}
+        	IncrementalAggregation state = new IncrementalAggregation(new File(options.get("state", filesDirectory + "businessEntities.state"))); 
+        	if (state.exists()) {
+        		try {
+        			state.load(); 
+        		} catch (IOException e) {
+        			System.out.println("Cannot read the business entities state, reading all the files: " + e.getMessage()); 
+        			state = new IncrementalAggregation(new File(options.get("state", filesDirectory + "businessEntities.state"))); 
+        		}
+        	}
+        	state.refresh(inputs, path -> readTree(cache, path, dji)); 
+        	System.out.println(state.summary()); 
+        	try {
+        		state.save(); 
+        	} catch (IOException e) {
+        		System.out.println("Cannot save the business entities state: " + e.getMessage()); 
+        	}
+        	aggregator = state.getAggregator(); 
+        }
+        else {
+	        //add all the companies found and relative labels to a list 
+	        for (File file : inputs) {
+	        	JsonNode rootNode = readTree(cache, file.toString(), dji); 
+	        	if (rootNode != null) 
+	        		aggregator.addJson(rootNode); 
+	            processedFiles += 1;
+	            if (processedFiles %10000 == 0) {
+	                System.out.println("Processed " + processedFiles +" files");
+	            }  
+	        }
+        }
+        if (cache != null) {
+        	try {
+        		int pruned = cache.close(); 
+        		System.out.println("JSON cache hits: " + cache.getHits() + ", misses: " + cache.getMisses() + ", " + pruned + " unused entries removed"); 
+        	} catch (IOException e) {
+        		System.out.println("Error saving the JSON cache index: " + e.getMessage()); 
+        	}
+        }
         endTime = System.currentTimeMillis();
         
         //remove from the list, all the public administrations present in proposingStructures.json
-        removePA("download/proposingStructures.json");
+        aggregator.removePA(options.get("proposing-structures", filesDirectory + "proposingStructures.json"));
         
-        //
-        LinkedList<HashMap<String, Object>> result =  companies.values()
-        		.stream()
-        		.collect(Collector.of(() -> new LinkedList<HashMap<String, Object>>(), (list, c) ->
-	        		{
-	                	Company company = (Company) c; 
-	                	HashMap <String, Object> res = new HashMap<>(); 
-	                	res.put("id", company.getId()); 
-	                	if (company.hasOriginalId()) 
-	                		res.put("originalId", company.getOriginalIds()); 
-	                	res.put("name", company.getBestLabel()); 
-	                	res.put("isItalian", company.isItalian());
-	                	list.add(res);
-	                 } ,  
-                (j1, j2) ->
-	                 { 
-	                	 j1.addAll(j2); 
-	                	 return j1; 
-	                 }
-	                 )
-        				); 
-       
-        System.out.println(String.format("Found %d distinct business entities.", result.size())); 
+        System.out.println(String.format("Found %d distinct business entities.", aggregator.size())); 
         
         //write list of companies to a json file 
-        ObjectMapper mapper =  new ObjectMapper().configure(SerializationFeature.INDENT_OUTPUT, true); 
        try {  
-    	   mapper.writeValue(new File("download/businessEntities.json"), result); 
+    	   aggregator.writeBusinessEntities(new File(options.get("output", filesDirectory + "businessEntities.json"))); 
         
        } catch(Exception e ){
     	   System.out.println(e.getMessage()); 
        }		
+       
+       //look for the same company under different ids 
+       EntityResolver resolver = EntityResolver.fromOptions(options); 
+       if (resolver != null) 
+    	   resolver.publish(aggregator.getCompanies(), new File(options.get("same-as", filesDirectory))); 
         System.out.println("Time in minutes: "+ ((endTime-startTime)/1000)/60);       
 	}
 	
 	
-	private static String getValue (String string, JsonNode record) {
-        return record.get(string) != null ? record.get(string).asText() : "";
-	}
-	
 	/*
-	 * this methos removes from the label list all the vatId which nelong to a public administration
-	 * which are already present in the proposingStructure.json file 
-	 */
-		private static void removePA(String proposingStructuresFile){
-		try {
-			String id; 
-			DefaultJSONImporter dji = new DefaultJSONImporter();
-			String psJson = dji.getJSON(proposingStructuresFile, "FILE");
-			ObjectMapper mapper = new ObjectMapper();
-	        
-            JsonNode rootNode = mapper.readValue(psJson, JsonNode.class);
-            for (JsonNode pa : rootNode){
-            	id= pa.get("vatId").textValue(); 
-            	if (companies.containsKey(id)) {
-            		companies.remove(id); 
-            		//System.out.println("removed "+id); 
-            	}
-            }
-		} catch (Exception e){
-			System.out.println("Errore nella letutra delle strutture proponenti (PA)"); 
-			System.out.println(e.getMessage()); 
+	 * returns null if the file cannot be parsed 
+	 * */
+	private static JsonNode readTree(SmileJSONCache cache, String path, DefaultJSONImporter dji){
+		if (cache != null) {
+			try {
+				return cache.readTree(path); 
+			} catch (IOException e) {
+				// read and parsed as JSON below 
+			}
 		}
+		String pcJson;
+		try (Span read = Profiling.begin(Stage.FILE_READ)) {
+			pcJson = dji.getJSON(path, "FILE");
+			read.path(path).bytes(new File(path).length());
+		}
+		return parseJson(pcJson, path); 
 	}
 
-	private static void   companiesFromJson(String inputJSON){
+	private static JsonNode parseJson(String inputJSON, String path){
 	    ObjectMapper mapper = new ObjectMapper();
         try {
-            JsonNode rootNode = mapper.readValue(inputJSON, JsonNode.class);
-            JsonNode data = rootNode.get("data").get("lotto");
-            if (data !=null){
-	            for (JsonNode record : data) {
-	            	if(getValue("aggiudicatari",record) != null) {
-	                    JsonNode winners = record.get("aggiudicatari");
-	                    if (winners != null){ 
-	                    	for (JsonNode winner:winners){
-	                    		if(getValue("type", winner).equals("aggiudicatario")) {
-	                    		addCompany(winner);               
-	                    		}
-	                    		if(getValue("type", winner).equals("aggiudicatarioRaggruppamento")) {
-	                        		addGroup(winner);                         		
-	                        	}     
-	                    	}
-	                    }
-	            	}
-	                if(getValue("partecipanti",record) != null) {
-	                    JsonNode participants = record.get("partecipanti");
-	                    if (participants != null){ 
-	                    	for (JsonNode participant:participants){
-	                    		if(getValue("type",  participant).equals("partecipante")) {
-	                        		addCompany( participant); 
-	                        	}
-	                        		if(getValue("type",  participant).equals("raggruppamento")) {
-	                            		addGroup( participant);                            		
-	                            	}                   		
-	                    	}                      
-	                    }
-	                }    	 
-	            }
-            }
+        	JsonNode rootNode;
+        	try (Span parse = Profiling.begin(Stage.PARSE)) {
+        		rootNode = mapper.readValue(inputJSON, JsonNode.class);
+        		parse.path(path).bytes(new File(path).length()).lots(PublicContractsTriplifier.countLots(rootNode));
+        	}
+            return rootNode;
         }catch (Exception e) {
         	e.printStackTrace();   
+        	return null; 
 	        }         
 	}
-	
-	private static void addCompany (JsonNode record){
-		String id; 
-		String name= getValue("ragioneSociale", record); 
-		Boolean isItalian=false; 
-		String originalId=""; 
-		if(getValue("companyHash", record) != "") {
-            id = getValue("companyHash", record);
-            if(getValue("codiceFiscale", record) != "") {
-            	originalId = getValue("codiceFiscale", record);
-            	isItalian = true;
-                }
-            if(getValue("identificativoFiscaleEstero", record) != "") {
-                originalId = getValue("identificativoFiscaleEstero", record);
-                isItalian = false;
-                }
-        } 
-		else {
-        	if (getValue("codiceFiscale", record)!=""){
-        		id = getValue("codiceFiscale", record);
-        		isItalian=true; 
-        		} 
-        	else {
-        		id = getValue("identificativoFiscaleEstero", record);
-        		isItalian=false;
-        		}
-        }
-		
-		//add company to the list 
-		if (originalId==""){
-			if (companies.containsKey(id)) 
-				companies.get(id).addName(name);
-				else companies.put(id, new Company(id, name, isItalian)); 
-		} 
-		else{
-			if (companies.containsKey(id)) {
-				companies.get(id).addName(name);
-				companies.get(id).addOriginalId(originalId);
-				}
-			else companies.put(id, new Company(id, name, isItalian, originalId));
-		}
-	}
-	
-	private static void addGroup(JsonNode record){
-		JsonNode members ; 
-		if (record.has("aggiudicatarioRaggruppamento")) 
-			members =record.get("aggiudicatarioRaggruppamento"); 
-		else  members =record.get("raggruppamento");
-		if (members!=null)
-			for (JsonNode member:members) addCompany(member); 
-		
-	}
 }
-
-
-
-
-
-
-
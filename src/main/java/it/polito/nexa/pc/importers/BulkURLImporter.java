@@ -0,0 +1,249 @@
+package it.polito.nexa.pc.importers;
+
+import it.polito.nexa.pc.CommandLineOptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads a list of JSON documents into a directory, with a bounded number of concurrent
+ * requests. Connections are reused through the keep-alive cache of HttpURLConnection (every
+ * response is read to the end, errors included), responses can be gzip compressed, and the
+ * ETag / Last-Modified of each document are kept in a cache directory so that the next run sends
+ * conditional requests and skips the documents that have not changed.
+ */
+public class BulkURLImporter {
+
+    public static final int UNCHANGED = 0;
+    public static final int DOWNLOADED = 1;
+    public static final int FAILED = 2;
+
+    private File outputDir;
+    private File cacheDir;
+    private int concurrency;
+
+    private AtomicLong downloaded = new AtomicLong();
+    private AtomicLong unchanged = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong transferredBytes = new AtomicLong();
+
+    public BulkURLImporter(File outputDir, File cacheDir, int concurrency) {
+        this.outputDir = outputDir;
+        this.cacheDir = cacheDir;
+        this.concurrency = concurrency;
+        outputDir.mkdirs();
+        cacheDir.mkdirs();
+        // Idle connections kept by HttpURLConnection for each host
+        if (Integer.getInteger("http.maxConnections", 5) < concurrency) {
+            System.setProperty("http.maxConnections", String.valueOf(concurrency));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: BulkURLImporter <file with one URL per line> <outputDir> [--concurrency <n>] [--cache <dir>]");
+            System.exit(1);
+        }
+        List<String> urls = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(options.getPositional().get(0)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().equals("")) {
+                    urls.add(line.trim());
+                }
+            }
+        }
+        String outputDir = options.getPositional().get(1);
+        BulkURLImporter importer = new BulkURLImporter(new File(outputDir),
+                new File(options.get("cache", outputDir + "/url-cache")), options.getInt("concurrency", 8));
+        long startTime = System.currentTimeMillis();
+        importer.fetchAll(urls);
+        System.out.println(importer.summary() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    public void fetchAll(List<String> urls) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        for (final String url : urls) {
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(url);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    /**
+     * Download a document unless the server reports that it has not changed
+     * @return UNCHANGED, DOWNLOADED or FAILED
+     */
+    public int fetch(String source) {
+        File target = new File(outputDir, fileName(source));
+        File metaFile = new File(cacheDir, SmileJSONCache.contentHash(source.getBytes(StandardCharsets.UTF_8)) + ".properties");
+        Properties meta = new Properties();
+        if (metaFile.exists() && target.exists()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException e) {
+                meta.clear();
+            }
+        }
+
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection) new URL(source).openConnection();
+            c.setRequestMethod("GET");
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            c.setUseCaches(false);
+            c.setAllowUserInteraction(false);
+            if (meta.getProperty("etag") != null) {
+                c.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta.getProperty("lastModified") != null) {
+                c.setRequestProperty("If-Modified-Since", meta.getProperty("lastModified"));
+            }
+            int status = c.getResponseCode();
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                drain(c.getInputStream());
+                unchanged.incrementAndGet();
+                return UNCHANGED;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                InputStream error = c.getErrorStream();
+                if (error != null) {
+                    drain(error);
+                }
+                System.out.println("Connection error: HTTP " + status + " for " + source);
+                failed.incrementAndGet();
+                return FAILED;
+            }
+
+            InputStream in = c.getInputStream();
+            if ("gzip".equalsIgnoreCase(c.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            target.getParentFile().mkdirs();
+            // Every fetch has its own temporary file, even if the same URL is listed twice
+            File tmp = Files.createTempFile(target.getParentFile().toPath(), target.getName(), ".part").toFile();
+            try {
+                try (InputStream body = in; OutputStream out = new FileOutputStream(tmp)) {
+                    byte[] buffer = new byte[16 * 1024];
+                    int read;
+                    while ((read = body.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+            transferredBytes.addAndGet(Math.max(0, c.getContentLengthLong()));
+
+            meta.clear();
+            if (c.getHeaderField("ETag") != null) {
+                meta.setProperty("etag", c.getHeaderField("ETag"));
+            }
+            if (c.getHeaderField("Last-Modified") != null) {
+                meta.setProperty("lastModified", c.getHeaderField("Last-Modified"));
+            }
+            // The validators are replaced atomically, so that they never describe a partial write
+            File metaTmp = Files.createTempFile(cacheDir.toPath(), metaFile.getName(), ".part").toFile();
+            try {
+                try (OutputStream out = new FileOutputStream(metaTmp)) {
+                    meta.store(out, source);
+                }
+                Files.move(metaTmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                metaTmp.delete();
+            }
+            downloaded.incrementAndGet();
+            return DOWNLOADED;
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage() + " for " + source);
+            failed.incrementAndGet();
+            if (c != null) {
+                // A broken connection must not go back to the keep-alive cache
+                c.disconnect();
+            }
+            return FAILED;
+        }
+    }
+
+    public String summary() {
+        return downloaded.get() + " documents downloaded (" + transferredBytes.get() / 1024 + " KB transferred), "
+                + unchanged.get() + " unchanged, " + failed.get() + " failed";
+    }
+
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The host and the path of the URL, so that documents with the same name on different paths
+     * do not overwrite each other. The last segment is replaced by the SHA-1 of the URL if it is
+     * not a JSON name or if the URL has a query.
+     */
+    public static String fileName(String source) {
+        String withoutScheme = source.replaceFirst("^[A-Za-z][A-Za-z0-9+.-]*://", "").replaceAll("#.*$", "");
+        String path = withoutScheme.replaceAll("\\?.*$", "");
+        String[] segments = path.split("/", -1);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < segments.length - 1; i++) {
+            String segment = segments[i].replaceAll("[^A-Za-z0-9._-]", "_");
+            if (!segment.equals("") && !segment.matches("\\.+")) {
+                name.append(segment).append('/');
+            }
+        }
+        String last = segments.length > 0 ? segments[segments.length - 1] : "";
+        if (!last.matches("[A-Za-z0-9._-]+\\.json") || !path.equals(withoutScheme)) {
+            last = SmileJSONCache.contentHash(source.getBytes(StandardCharsets.UTF_8)) + ".json";
+        }
+        return name.append(last).toString();
+    }
+
+    /**
+     * Read a response to the end, so that its connection can be reused
+     */
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Discarded
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
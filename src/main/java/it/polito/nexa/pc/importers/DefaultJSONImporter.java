@@ -35,7 +35,7 @@ public class DefaultJSONImporter implements JSONImporter {
                     br.close();
                     data = sb.toString();
                 }
-                else System.out.println("Connection error");
+                else System.out.println("Connection error: HTTP " + status + " for " + source);
             } catch (MalformedURLException ex) {
                 System.out.println(ex);
             } catch (IOException ex) {
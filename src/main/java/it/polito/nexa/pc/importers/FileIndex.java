@@ -0,0 +1,285 @@
+package it.polito.nexa.pc.importers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import it.polito.nexa.pc.CommandLineOptions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Sidecar index of the ANAC JSON files: for each file it records the reference years, the
+ * proposing structures (contracting authorities) and the range of its CIGs, so that a run can
+ * read only the files of one year or one administration. A file with several lots gets every
+ * year and every authority of its lots, and is selected when any of them matches a filter.
+ *
+ * The index is a tab separated file stored next to the input files, with comma separated
+ * years and authorities; its name contains "_index" so the generators never read it as data.
+ * An entry is refreshed only when the size or the modification time of its file change, and
+ * the fields are read with a streaming parser which stops as soon as the header of a single
+ * lot is known.
+ */
+public class FileIndex {
+
+    public static String DEFAULT_NAME = "files_index.tsv";
+
+    private static JsonFactory JSON_FACTORY = new JsonFactory();
+    // First line of the index; the entries of an index without it are read again
+    private static String HEADER = "# files_index 2";
+
+    private File indexFile;
+    private File baseDir;
+    private Map<String, Entry> entries = new HashMap<>();
+    private int peeked = 0;
+
+    public static class Entry {
+        public String path;
+        public long size;
+        public long lastModified;
+        public Set<String> years = new TreeSet<>();
+        public Set<String> authorities = new TreeSet<>();
+        public String cigMin = "";
+        public String cigMax = "";
+    }
+
+    public FileIndex(File baseDir, File indexFile) throws IOException {
+        this.baseDir = baseDir;
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Bring the index up to date with the given files, entries of removed files are dropped
+     */
+    public void update(Collection<File> files) {
+        Map<String, Entry> updated = new HashMap<>();
+        for (File file : files) {
+            String path = relativePath(file);
+            Entry entry = entries.get(path);
+            if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+                entry = peek(file, path);
+                peeked++;
+            }
+            updated.put(path, entry);
+        }
+        entries = updated;
+    }
+
+    /**
+     * Select the files matching the filters, a null or empty filter matches every file
+     * @param years Accepted values of annoRiferimento
+     * @param authorities Accepted proposing structures (cfStrutturaProponenteANAC)
+     * @param cig A CIG that must fall in the range of the file
+     */
+    public List<File> select(Collection<File> files, Set<String> years, Set<String> authorities, String cig) {
+        List<File> selected = new ArrayList<>();
+        for (File file : files) {
+            Entry entry = entries.get(relativePath(file));
+            if (entry == null) {
+                continue;
+            }
+            if (years != null && !years.isEmpty() && Collections.disjoint(years, entry.years)) {
+                continue;
+            }
+            if (authorities != null && !authorities.isEmpty() && Collections.disjoint(authorities, entry.authorities)) {
+                continue;
+            }
+            if (cig != null && (entry.cigMin.equals("") || cig.compareTo(entry.cigMin) < 0 || cig.compareTo(entry.cigMax) > 0)) {
+                continue;
+            }
+            selected.add(file);
+        }
+        return selected;
+    }
+
+    public Entry getEntry(File file) {
+        return entries.get(relativePath(file));
+    }
+
+    public int getPeekedFiles() {
+        return peeked;
+    }
+
+    public void save() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n");
+            for (Entry e : entries.values()) {
+                writer.write(e.path + "\t" + e.size + "\t" + e.lastModified + "\t" + String.join(",", e.years) + "\t"
+                        + String.join(",", e.authorities) + "\t" + e.cigMin + "\t" + e.cigMax + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restrict the input files to the --year, --authority and --cig filters of the command line.
+     * The index is refreshed and saved whenever a filter or --index is given.
+     */
+    public static Collection<File> applyFilters(File inputDir, Collection<File> files, CommandLineOptions options) {
+        if (!options.has("year") && !options.has("authority") && !options.has("cig") && !options.has("index")) {
+            return files;
+        }
+        long startTime = System.currentTimeMillis();
+        File indexFile = new File(options.get("index", new File(inputDir, DEFAULT_NAME).getPath()));
+        try {
+            FileIndex index = new FileIndex(inputDir, indexFile);
+            index.update(files);
+            index.save();
+            List<File> selected = index.select(files, parseFilter(options.get("year", null)),
+                    parseFilter(options.get("authority", null)), options.get("cig", null));
+            System.out.println("File index updated in " + (System.currentTimeMillis() - startTime) + " ms ("
+                    + index.getPeekedFiles() + " files read), " + selected.size() + " of " + files.size() + " files selected");
+            return selected;
+        } catch (IOException e) {
+            System.out.println("Cannot use the file index " + indexFile + ": " + e.getMessage());
+            return files;
+        }
+    }
+
+    /**
+     * Parse a comma separated filter of the command line
+     */
+    public static Set<String> parseFilter(String value) {
+        Set<String> values = new HashSet<>();
+        if (value != null) {
+            values.addAll(Arrays.asList(value.split(",")));
+        }
+        return values;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                // Written by a version with a single year and authority per file
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 7) {
+                    continue;
+                }
+                Entry e = new Entry();
+                e.path = fields[0];
+                e.size = Long.parseLong(fields[1]);
+                e.lastModified = Long.parseLong(fields[2]);
+                e.years.addAll(split(fields[3]));
+                e.authorities.addAll(split(fields[4]));
+                e.cigMin = fields[5];
+                e.cigMax = fields[6];
+                entries.put(e.path, e);
+            }
+        }
+    }
+
+    /**
+     * Read years, authorities and CIG range with a streaming parser. Files describing a single lot
+     * have these fields at the top level and are read only up to them; files with a "lotto"
+     * array are scanned to collect the values of all their lots. The authority is
+     * cfStrutturaProponenteANAC, or codiceFiscaleProp for the files that never have it.
+     */
+    private Entry peek(File file, String path) {
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.size = file.length();
+        entry.lastModified = file.lastModified();
+        Set<String> fiscalCodes = new TreeSet<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(file)) {
+            int depth = 0;
+            boolean topCig = false;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (token == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    if (name.equals("cig") || name.equals("annoRiferimento")
+                            || name.equals("cfStrutturaProponenteANAC") || name.equals("codiceFiscaleProp")) {
+                        if (parser.nextToken().isScalarValue()) {
+                            String value = clean(parser.getText());
+                            if (name.equals("cig")) {
+                                addCig(entry, value);
+                                topCig |= depth == 1;
+                            } else if (name.equals("annoRiferimento")) {
+                                add(entry.years, value);
+                            } else if (name.equals("cfStrutturaProponenteANAC")) {
+                                add(entry.authorities, value);
+                            } else {
+                                add(fiscalCodes, value);
+                            }
+                        } else {
+                            depth++;
+                        }
+                    }
+                    if (depth == 1 && topCig && !entry.years.isEmpty() && !entry.authorities.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot index " + file + ": " + e.getMessage());
+        }
+        if (entry.authorities.isEmpty()) {
+            entry.authorities.addAll(fiscalCodes);
+        }
+        return entry;
+    }
+
+    private static void add(Set<String> values, String value) {
+        // Commas separate the values in the index
+        value = value.replace(',', ' ').trim();
+        if (!value.equals("")) {
+            values.add(value);
+        }
+    }
+
+    private static List<String> split(String field) {
+        return field.equals("") ? new ArrayList<String>() : Arrays.asList(field.split(","));
+    }
+
+    private static void addCig(Entry entry, String cig) {
+        if (cig.equals("")) {
+            return;
+        }
+        if (entry.cigMin.equals("") || cig.compareTo(entry.cigMin) < 0) {
+            entry.cigMin = cig;
+        }
+        if (entry.cigMax.equals("") || cig.compareTo(entry.cigMax) > 0) {
+            entry.cigMax = cig;
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').trim();
+    }
+
+    private String relativePath(File file) {
+        return baseDir.toPath().toAbsolutePath().normalize().relativize(file.toPath().toAbsolutePath().normalize()).toString();
+    }
+}
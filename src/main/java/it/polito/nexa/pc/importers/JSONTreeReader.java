@@ -0,0 +1,99 @@
+package it.polito.nexa.pc.importers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds the tree of a JSON document with the streaming parser and the node factory only.
+ *
+ * The result is the same tree returned by ObjectMapper.readTree, but no ObjectMapper is created:
+ * its construction loads the whole serialization and introspection machinery of Jackson, which
+ * takes a large share of the startup time of a short run and is never used to read trees.
+ */
+public class JSONTreeReader {
+
+    private static JsonFactory JSON_FACTORY = new JsonFactory();
+    private static JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    /**
+     * @return The root node, or null if the file is empty
+     */
+    public static JsonNode readTree(File file) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(file)) {
+            return readRoot(parser);
+        }
+    }
+
+    /**
+     * @return The root node, or null if the content is empty
+     */
+    public static JsonNode readTree(byte[] content) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+            return readRoot(parser);
+        }
+    }
+
+    private static JsonNode readRoot(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            return null;
+        }
+        JsonNode root = readValue(parser, token);
+        if (parser.nextToken() != null) {
+            throw new IOException("Unexpected content after the root value at " + parser.getCurrentLocation());
+        }
+        return root;
+    }
+
+    private static JsonNode readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                ObjectNode object = NODES.objectNode();
+                while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    object.set(name, readValue(parser, parser.nextToken()));
+                }
+                return object;
+            case START_ARRAY:
+                ArrayNode array = NODES.arrayNode();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.add(readValue(parser, token));
+                }
+                return array;
+            case VALUE_STRING:
+                return NODES.textNode(parser.getText());
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return NODES.numberNode(parser.getIntValue());
+                    case LONG:
+                        return NODES.numberNode(parser.getLongValue());
+                    default:
+                        return NODES.numberNode(parser.getBigIntegerValue());
+                }
+            case VALUE_NUMBER_FLOAT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_DECIMAL) {
+                    return NODES.numberNode(parser.getDecimalValue());
+                }
+                return NODES.numberNode(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return NODES.booleanNode(true);
+            case VALUE_FALSE:
+                return NODES.booleanNode(false);
+            case VALUE_NULL:
+                return NODES.nullNode();
+            case VALUE_EMBEDDED_OBJECT:
+                return NODES.pojoNode(parser.getEmbeddedObject());
+            default:
+                throw new IOException("Unexpected token " + token + " at " + parser.getCurrentLocation());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package it.polito.nexa.pc.importers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary cache of the parsed ANAC JSON files.
+ *
+ * Each input file is stored in the Smile format under the SHA-1 of its content, so a
+ * later run reads the binary form instead of parsing the text again. A changed source
+ * has a different hash, hence stale entries are never read and the cache needs no
+ * explicit invalidation.
+ *
+ * The index (index.tsv) maps the path of every source to its size, modification time and
+ * hash: a source whose size and modification time have not changed is not read at all, only
+ * its binary form. When the cache is closed the index is saved, without the sources that no
+ * longer exist, and the binary forms that no entry of the index refers to are deleted.
+ */
+public class SmileJSONCache {
+
+    private static ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    private File cacheDir;
+    private File indexFile;
+    // Path -> size, modification time and content hash of the source
+    private Map<String, Entry> index = new ConcurrentHashMap<>();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong unreadSources = new AtomicLong();
+
+    private static class Entry {
+        long size;
+        long modified;
+        String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    public SmileJSONCache(String cacheDir) {
+        this.cacheDir = new File(cacheDir);
+        this.cacheDir.mkdirs();
+        this.indexFile = new File(this.cacheDir, "index.tsv");
+        if (indexFile.exists()) {
+            try {
+                loadIndex();
+            } catch (IOException | RuntimeException e) {
+                // Without the index every source is read and hashed again
+                System.out.println("Cannot read the JSON cache index, rebuilding it: " + e.getMessage());
+                index.clear();
+            }
+        }
+    }
+
+    /**
+     * Read the tree of a JSON file, from the binary cache if the same content was already parsed.
+     * @param source The path of the JSON file
+     * @return The root node of the JSON document
+     *
+     */
+    public JsonNode readTree(String source) throws IOException {
+        File sourceFile = new File(source);
+        long size = sourceFile.length();
+        long modified = sourceFile.lastModified();
+        Entry entry = index.get(source);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            JsonNode rootNode = readCached(cachedFile(entry.hash));
+            if (rootNode != null) {
+                hits.incrementAndGet();
+                unreadSources.incrementAndGet();
+                return rootNode;
+            }
+        }
+
+        byte[] content = Files.readAllBytes(Paths.get(source));
+        String hash = contentHash(content);
+        File cached = cachedFile(hash);
+        JsonNode rootNode = readCached(cached);
+        if (rootNode != null) {
+            hits.incrementAndGet();
+        } else {
+            rootNode = JSON_MAPPER.readTree(content);
+            misses.incrementAndGet();
+            cached.getParentFile().mkdirs();
+            Path tmp = Files.createTempFile(cached.getParentFile().toPath(), hash, ".tmp");
+            SMILE_MAPPER.writeValue(tmp.toFile(), rootNode);
+            Files.move(tmp, cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        index.put(source, new Entry(size, modified, hash));
+        return rootNode;
+    }
+
+    /**
+     * Save the index and delete the binary forms it no longer refers to
+     * @return The number of binary forms deleted
+     */
+    public int close() throws IOException {
+        Iterator<Map.Entry<String, Entry>> entries = index.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (!new File(entries.next().getKey()).exists()) {
+                entries.remove();
+            }
+        }
+        File tmp = new File(cacheDir, "index.tsv.tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+            for (Map.Entry<String, Entry> e : index.entrySet()) {
+                writer.write(e.getValue().size + "\t" + e.getValue().modified + "\t" + e.getValue().hash + "\t" + e.getKey() + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Set<String> referenced = new HashSet<>();
+        for (Entry entry : index.values()) {
+            referenced.add(entry.hash + ".sml");
+        }
+        int pruned = 0;
+        File[] dirs = cacheDir.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.isDirectory() && dir.getName().length() == 2 ? dir.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(".sml") || name.endsWith(".tmp")) && !referenced.contains(name) && file.delete()) {
+                    pruned++;
+                }
+            }
+        }
+        return pruned;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Hits whose source was not read, since its size and modification time had not changed
+     */
+    public long getUnreadSources() {
+        return unreadSources.get();
+    }
+
+    private File cachedFile(String hash) {
+        return new File(new File(cacheDir, hash.substring(0, 2)), hash + ".sml");
+    }
+
+    /**
+     * @return The cached tree, or null if there is none
+     */
+    private JsonNode readCached(File cached) {
+        if (!cached.exists()) {
+            return null;
+        }
+        try {
+            return SMILE_MAPPER.readTree(cached);
+        } catch (IOException e) {
+            // A truncated entry is rebuilt
+            cached.delete();
+            return null;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                index.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+    }
+
+    static String contentHash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package it.polito.nexa.pc.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a mapping spec into Steps.
+ *
+ * The spec has "prefixes" for the compact IRIs, named "mappings" (each with optional "params",
+ * "required" fields, "let" variables and "triples"), the name of the "root" mapping and an
+ * optional "static" application of a mapping to inline "data". Names between braces in a
+ * template refer to the variables visible at that point (the lets of the enclosing blocks and
+ * the params of the mapping) or else to the fields of the current node; "$json" and "$text" are
+ * the current node itself, and "|clean" applies cleanString to the value.
+ */
+class MappingCompiler {
+
+    private static Pattern COMPACT_IRI = Pattern.compile("^([A-Za-z][A-Za-z0-9_-]*):(.*)$", Pattern.DOTALL);
+    private static Pattern REFERENCE = Pattern.compile("\\{([^}|]+)(\\|clean)?\\}");
+
+    private JsonNode spec;
+    private Map<String, String> prefixes = new HashMap<>();
+    private Map<String, Steps.Block> mappings = new LinkedHashMap<>();
+    private Map<String, List<String>> params = new HashMap<>();
+
+    /**
+     * Names visible in a block: its variables, then those of the enclosing block up to the mapping
+     */
+    private static class Scope {
+        Steps.Block block;
+        Scope parent;
+        Map<String, Integer> vars = new HashMap<>();
+
+        Scope(Steps.Block block, Scope parent) {
+            this.block = block;
+            this.parent = parent;
+        }
+
+        int field(String name) {
+            int slot = block.fieldNames.indexOf(name);
+            if (slot < 0) {
+                block.fieldNames.add(name);
+                slot = block.fieldNames.size() - 1;
+            }
+            return slot;
+        }
+    }
+
+    MappingCompiler(JsonNode spec) {
+        this.spec = spec;
+    }
+
+    MappingPlan compile() {
+        Iterator<Map.Entry<String, JsonNode>> entries = spec.path("prefixes").fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            prefixes.put(entry.getKey(), entry.getValue().asText());
+        }
+        // Blocks are created first, so that mappings can apply each other in any order
+        entries = spec.path("mappings").fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            Steps.Block block = new Steps.Block(entry.getKey());
+            List<String> names = new ArrayList<>();
+            for (JsonNode param : entry.getValue().path("params")) {
+                names.add(param.asText());
+            }
+            block.varCount = names.size();
+            mappings.put(entry.getKey(), block);
+            params.put(entry.getKey(), names);
+        }
+        for (Map.Entry<String, Steps.Block> mapping : mappings.entrySet()) {
+            Scope scope = new Scope(mapping.getValue(), null);
+            List<String> names = params.get(mapping.getKey());
+            for (int i = 0; i < names.size(); i++) {
+                scope.vars.put(names.get(i), i);
+            }
+            compileBlock(spec.path("mappings").get(mapping.getKey()), scope);
+        }
+
+        Steps.Block root = mapping(spec.path("root").asText());
+        List<Statement> staticStatements = new ArrayList<>();
+        if (spec.has("static")) {
+            Steps.Block block = mapping(spec.path("static").path("apply").asText());
+            JsonNode data = spec.path("static").path("data");
+            block.run(new Steps.Frame(block, data, null), staticStatements, null);
+        }
+        return new MappingPlan(root, staticStatements);
+    }
+
+    private Steps.Block mapping(String name) {
+        Steps.Block block = mappings.get(name);
+        if (block == null) {
+            throw new IllegalArgumentException("Unknown mapping " + name);
+        }
+        return block;
+    }
+
+    private void compileBlock(JsonNode blockSpec, Scope scope) {
+        Steps.Block block = scope.block;
+        List<Integer> required = new ArrayList<>();
+        for (JsonNode field : blockSpec.path("required")) {
+            required.add(scope.field(field.asText()));
+        }
+        block.required = toArray(required);
+
+        List<Integer> letSlots = new ArrayList<>();
+        List<Steps.Expr> lets = new ArrayList<>();
+        List<Boolean> iriLets = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> entries = blockSpec.path("let").fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            JsonNode value = entry.getValue();
+            boolean iri = value.isObject() && value.has("iri");
+            // A let is visible only after its definition, so it can be named as the field it is computed from
+            lets.add(iri ? compileExpr(value.get("iri"), scope, true) : compileExpr(value, scope, false));
+            iriLets.add(iri);
+            letSlots.add(block.varCount);
+            scope.vars.put(entry.getKey(), block.varCount++);
+        }
+        block.letSlots = toArray(letSlots);
+        block.lets = lets.toArray(new Steps.Expr[lets.size()]);
+        block.iriLets = new boolean[iriLets.size()];
+        for (int i = 0; i < iriLets.size(); i++) {
+            block.iriLets[i] = iriLets.get(i);
+        }
+        block.steps = compileSteps(blockSpec.path("triples"), scope);
+    }
+
+    private Steps.Step[] compileSteps(JsonNode stepsSpec, Scope scope) {
+        List<Steps.Step> steps = new ArrayList<>();
+        for (JsonNode stepSpec : stepsSpec) {
+            steps.add(compileStep(stepSpec, scope));
+        }
+        return steps.toArray(new Steps.Step[steps.size()]);
+    }
+
+    private Steps.Step compileStep(JsonNode stepSpec, Scope scope) {
+        Steps.Step step;
+        if (stepSpec.has("forEach")) {
+            Steps.ForEach forEach = new Steps.ForEach();
+            forEach.source = source(stepSpec.get("forEach").asText(), scope);
+            forEach.block = nestedBlock(stepSpec, scope, "forEach " + stepSpec.get("forEach").asText());
+            step = forEach;
+        } else if (stepSpec.has("node")) {
+            Steps.Nested nested = new Steps.Nested();
+            nested.source = source(stepSpec.get("node").asText(), scope);
+            nested.block = nestedBlock(stepSpec, scope, "node " + stepSpec.get("node").asText());
+            step = nested;
+        } else if (stepSpec.has("apply")) {
+            step = compileApply(stepSpec, scope);
+        } else if (stepSpec.has("emitOnce")) {
+            Steps.EmitOnce emitOnce = new Steps.EmitOnce();
+            // The template names the described resource; it is checked, but the registry keys every statement
+            compileTemplate(stepSpec.get("emitOnce").asText(), scope, true);
+            emitOnce.steps = compileSteps(stepSpec.path("triples"), scope);
+            step = emitOnce;
+        } else if (stepSpec.has("s")) {
+            step = compileTriple(stepSpec, scope);
+        } else if (stepSpec.has("triples")) {
+            // A group of steps over the same node, with its own variables
+            Steps.Nested group = new Steps.Nested();
+            group.source = new Steps.Source(-1);
+            group.block = nestedBlock(stepSpec, scope, scope.block.name);
+            step = group;
+        } else {
+            throw new IllegalArgumentException("Invalid mapping step " + stepSpec);
+        }
+        if (stepSpec.has("when")) {
+            step.when = compileCondition(stepSpec.get("when"), scope);
+        }
+        return step;
+    }
+
+    private Steps.Block nestedBlock(JsonNode blockSpec, Scope scope, String name) {
+        Scope nested = new Scope(new Steps.Block(name), scope);
+        compileBlock(blockSpec, nested);
+        return nested.block;
+    }
+
+    private Steps.Step compileApply(JsonNode stepSpec, Scope scope) {
+        String name = stepSpec.get("apply").asText();
+        Steps.Apply apply = new Steps.Apply();
+        apply.mapping = mapping(name);
+        apply.source = source(text(stepSpec.path("on"), "$"), scope);
+        List<String> names = params.get(name);
+        apply.arguments = new Steps.Expr[names.size()];
+        Iterator<Map.Entry<String, JsonNode>> arguments = stepSpec.path("with").fields();
+        while (arguments.hasNext()) {
+            Map.Entry<String, JsonNode> argument = arguments.next();
+            int index = names.indexOf(argument.getKey());
+            if (index < 0) {
+                throw new IllegalArgumentException("Mapping " + name + " has no param " + argument.getKey());
+            }
+            apply.arguments[index] = compileExpr(argument.getValue(), scope, false);
+        }
+        return apply;
+    }
+
+    private Steps.Step compileTriple(JsonNode stepSpec, Scope scope) {
+        Steps.Triple triple = new Steps.Triple();
+        triple.subject = compileTemplate(stepSpec.get("s").asText(), scope, true);
+        triple.predicate = compileTemplate(stepSpec.path("p").asText(), scope, true);
+        if (triple.predicate.constant() != null) {
+            triple.constantPredicate = ResourceFactory.createProperty(triple.predicate.constant());
+        }
+        JsonNode object = stepSpec.path("o");
+        if (object.isTextual()) {
+            triple.object = compileTemplate(object.asText(), scope, true);
+        } else if (object.has("iri")) {
+            triple.object = compileExpr(object.get("iri"), scope, true);
+        } else if (object.has("literal")) {
+            triple.literal = true;
+            triple.object = compileExpr(object.get("literal"), scope, false);
+            if (object.has("lang")) {
+                triple.lang = object.get("lang").asText();
+            } else if (object.has("datatype")) {
+                triple.datatype = datatype(object.get("datatype").asText());
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid object in " + stepSpec);
+        }
+        String constant = triple.object.constant();
+        if (constant != null) {
+            triple.constantObject = triple.literal ? triple.literal(constant) : ResourceFactory.createResource(constant);
+        }
+        return triple;
+    }
+
+    private RDFDatatype datatype(String name) {
+        String uri = expand(name);
+        RDFDatatype datatype = TypeMapper.getInstance().getTypeByName(uri);
+        if (datatype == null) {
+            throw new IllegalArgumentException("Unknown datatype " + name);
+        }
+        return datatype;
+    }
+
+    private Steps.Expr compileExpr(JsonNode exprSpec, Scope scope, boolean iri) {
+        if (exprSpec.isTextual()) {
+            return compileTemplate(exprSpec.asText(), scope, iri);
+        }
+        if (exprSpec.has("clean")) {
+            return new Steps.Clean(compileExpr(exprSpec.get("clean"), scope, false));
+        }
+        if (exprSpec.has("cases")) {
+            List<Steps.Condition> conditions = new ArrayList<>();
+            List<Steps.Expr> values = new ArrayList<>();
+            for (JsonNode caseSpec : exprSpec.get("cases")) {
+                conditions.add(compileCondition(caseSpec.get("when"), scope));
+                values.add(compileExpr(caseSpec.get("value"), scope, iri));
+            }
+            return new Steps.Cases(conditions.toArray(new Steps.Condition[conditions.size()]),
+                    values.toArray(new Steps.Expr[values.size()]), compileExpr(exprSpec.path("else"), scope, iri));
+        }
+        if (exprSpec.has("lastMatch")) {
+            JsonNode match = exprSpec.get("lastMatch");
+            Scope item = new Scope(new Steps.Block("lastMatch"), scope);
+            return new Steps.LastMatch(source(text(match.path("forEach"), "$"), scope), item.block,
+                    compileCondition(match.get("when"), item), compileExpr(match.get("value"), item, iri),
+                    compileExpr(exprSpec.path("else"), scope, iri));
+        }
+        if (exprSpec.isMissingNode()) {
+            return new Steps.Const("");
+        }
+        throw new IllegalArgumentException("Invalid expression " + exprSpec);
+    }
+
+    private Steps.Expr compileTemplate(String template, Scope scope, boolean iri) {
+        if (iri) {
+            template = expand(template);
+        }
+        List<Steps.Expr> parts = new ArrayList<>();
+        Matcher matcher = REFERENCE.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            if (matcher.start() > start) {
+                parts.add(new Steps.Const(template.substring(start, matcher.start())));
+            }
+            Steps.Expr reference = resolve(matcher.group(1), scope);
+            parts.add(matcher.group(2) != null ? new Steps.Clean(reference) : reference);
+            start = matcher.end();
+        }
+        if (start < template.length() || parts.isEmpty()) {
+            parts.add(new Steps.Const(template.substring(start)));
+        }
+        return parts.size() == 1 ? parts.get(0) : new Steps.Concat(parts.toArray(new Steps.Expr[parts.size()]));
+    }
+
+    private String expand(String value) {
+        Matcher matcher = COMPACT_IRI.matcher(value);
+        if (matcher.matches() && prefixes.containsKey(matcher.group(1))) {
+            return prefixes.get(matcher.group(1)) + matcher.group(2);
+        }
+        return value;
+    }
+
+    private Steps.Expr resolve(String name, Scope scope) {
+        if (name.equals("$json") || name.equals("$text")) {
+            return new Steps.NodeRef(name.equals("$json"));
+        }
+        int depth = 0;
+        for (Scope current = scope; current != null; current = current.parent) {
+            Integer slot = current.vars.get(name);
+            if (slot != null) {
+                return new Steps.VarRef(depth, slot);
+            }
+            depth++;
+        }
+        return new Steps.FieldRef(scope.field(name));
+    }
+
+    private Steps.Source source(String name, Scope scope) {
+        return new Steps.Source(name.equals("$") ? -1 : scope.field(name));
+    }
+
+    private Steps.Condition compileCondition(JsonNode conditionSpec, Scope scope) {
+        if (conditionSpec == null) {
+            throw new IllegalArgumentException("Missing condition");
+        }
+        if (conditionSpec.has("exists")) {
+            return new Steps.Exists(scope.field(conditionSpec.get("exists").asText()));
+        }
+        if (conditionSpec.has("notEmpty")) {
+            return new Steps.NotEmpty(resolve(conditionSpec.get("notEmpty").asText(), scope));
+        }
+        if (conditionSpec.has("empty")) {
+            return new Steps.Not(new Steps.NotEmpty(resolve(conditionSpec.get("empty").asText(), scope)));
+        }
+        if (conditionSpec.has("equals")) {
+            JsonNode operands = conditionSpec.get("equals");
+            return new Steps.Equals(resolve(operands.path(0).asText(), scope), operands.path(1).asText());
+        }
+        if (conditionSpec.has("not")) {
+            return new Steps.Not(compileCondition(conditionSpec.get("not"), scope));
+        }
+        if (conditionSpec.has("all") || conditionSpec.has("any")) {
+            boolean any = conditionSpec.has("any");
+            List<Steps.Condition> conditions = new ArrayList<>();
+            for (JsonNode operand : conditionSpec.get(any ? "any" : "all")) {
+                conditions.add(compileCondition(operand, scope));
+            }
+            return new Steps.All(conditions.toArray(new Steps.Condition[conditions.size()]), any);
+        }
+        throw new IllegalArgumentException("Invalid condition " + conditionSpec);
+    }
+
+    private static String text(JsonNode node, String defaultValue) {
+        return node.isMissingNode() ? defaultValue : node.asText();
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
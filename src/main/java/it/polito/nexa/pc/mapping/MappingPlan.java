@@ -0,0 +1,88 @@
+package it.polito.nexa.pc.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hp.hpl.jena.rdf.model.Statement;
+import it.polito.nexa.pc.importers.JSONTreeReader;
+import it.polito.nexa.pc.triplifiers.EmitOnceRegistry;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Execution plan of a declarative JSON-to-RDF mapping (see src/main/resources/mappings).
+ *
+ * The spec is compiled once: compact IRIs are expanded, templates are split into constant parts
+ * and references, every name is resolved either to a variable slot or to a field slot of the
+ * node being mapped, and the constant resources, properties and literals are created up front.
+ * At run time each field is looked up once per node and each variable (for instance the IRI of
+ * the contract) is computed once per node, then shared by all the statements that use it.
+ * The statements that do not depend on the input are produced once, at compile time.
+ *
+ * A plan is immutable, so one instance can serve concurrent callers.
+ */
+public class MappingPlan {
+
+    public static String DEFAULT_SPEC = "mappings/public-contracts.json";
+
+    private Steps.Block root;
+    private List<Statement> staticStatements;
+
+    MappingPlan(Steps.Block root, List<Statement> staticStatements) {
+        this.root = root;
+        this.staticStatements = Collections.unmodifiableList(staticStatements);
+    }
+
+    /**
+     * @param location A file, or a resource on the classpath such as DEFAULT_SPEC
+     */
+    public static MappingPlan load(String location) throws IOException {
+        byte[] content;
+        File file = new File(location);
+        if (file.isFile()) {
+            content = Files.readAllBytes(file.toPath());
+        } else {
+            try (InputStream in = MappingPlan.class.getClassLoader().getResourceAsStream(location)) {
+                if (in == null) {
+                    throw new IOException("Mapping spec not found: " + location);
+                }
+                content = IOUtils.toByteArray(in);
+            }
+        }
+        JsonNode spec = JSONTreeReader.readTree(content);
+        if (spec == null) {
+            throw new IOException("Empty mapping spec: " + location);
+        }
+        return compile(spec);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the spec is not valid
+     */
+    public static MappingPlan compile(JsonNode spec) {
+        return new MappingCompiler(spec).compile();
+    }
+
+    /**
+     * Map a record with the root mapping of the spec
+     * @param registry The emit-once registry of the run, or null to describe every resource each time
+     * @throws IllegalArgumentException If a required field is missing
+     */
+    public List<Statement> map(JsonNode record, EmitOnceRegistry registry) {
+        List<Statement> results = new ArrayList<>();
+        root.run(new Steps.Frame(root, record, null), results, registry);
+        return results;
+    }
+
+    /**
+     * @return The statements that the spec produces for every document, independently of its content
+     */
+    public List<Statement> getStaticStatements() {
+        return staticStatements;
+    }
+}
@@ -0,0 +1,514 @@
+package it.polito.nexa.pc.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import it.polito.nexa.pc.triplifiers.EmitOnceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled form of a mapping: blocks of steps evaluated over frames, each frame holding the
+ * node being mapped, its field slots and its variables.
+ */
+class Steps {
+
+    /**
+     * The node being mapped by a block, with the fields the block reads and its variables.
+     * Variables are Strings, or Resources for the IRI variables.
+     */
+    static class Frame {
+        JsonNode node;
+        Frame parent;
+        JsonNode[] fields;
+        Object[] vars;
+
+        Frame(Block block, JsonNode node, Frame parent) {
+            this.node = node;
+            this.parent = parent;
+            this.fields = new JsonNode[block.fieldNames.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.get(block.fieldNames.get(i));
+            }
+            this.vars = new Object[block.varCount];
+        }
+    }
+
+    // ---- Expressions
+
+    static abstract class Expr {
+
+        abstract String text(Frame frame);
+
+        Resource resource(Frame frame) {
+            return ResourceFactory.createResource(text(frame));
+        }
+
+        /**
+         * @return The value if it does not depend on the input, otherwise null
+         */
+        String constant() {
+            return null;
+        }
+    }
+
+    static class Const extends Expr {
+        String value;
+        Resource resource;
+
+        Const(String value) {
+            this.value = value;
+        }
+
+        @Override
+        String text(Frame frame) {
+            return value;
+        }
+
+        @Override
+        Resource resource(Frame frame) {
+            if (resource == null) {
+                resource = ResourceFactory.createResource(value);
+            }
+            return resource;
+        }
+
+        @Override
+        String constant() {
+            return value;
+        }
+    }
+
+    static class VarRef extends Expr {
+        int depth;
+        int slot;
+
+        VarRef(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        Object value(Frame frame) {
+            for (int d = 0; d < depth; d++) {
+                frame = frame.parent;
+            }
+            return frame.vars[slot];
+        }
+
+        @Override
+        String text(Frame frame) {
+            Object value = value(frame);
+            return value instanceof Resource ? ((Resource) value).getURI() : (String) value;
+        }
+
+        @Override
+        Resource resource(Frame frame) {
+            Object value = value(frame);
+            return value instanceof Resource ? (Resource) value : ResourceFactory.createResource((String) value);
+        }
+    }
+
+    /**
+     * The text of a field of the node, empty if the field is missing
+     */
+    static class FieldRef extends Expr {
+        int slot;
+
+        FieldRef(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        String text(Frame frame) {
+            JsonNode field = frame.fields[slot];
+            return field != null ? field.asText() : "";
+        }
+    }
+
+    /**
+     * The node itself, as JSON ($json) or as text ($text)
+     */
+    static class NodeRef extends Expr {
+        boolean json;
+
+        NodeRef(boolean json) {
+            this.json = json;
+        }
+
+        @Override
+        String text(Frame frame) {
+            return json ? frame.node.toString() : frame.node.asText();
+        }
+    }
+
+    static class Concat extends Expr {
+        Expr[] parts;
+
+        Concat(Expr[] parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        String text(Frame frame) {
+            StringBuilder sb = new StringBuilder();
+            for (Expr part : parts) {
+                sb.append(part.text(frame));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The same replacements of PublicContractsTriplifier.cleanString, with the patterns compiled once
+     */
+    static class Clean extends Expr {
+        private static Pattern[] PATTERNS = {
+                Pattern.compile("´"), Pattern.compile("’"), Pattern.compile("'"), Pattern.compile("[“”]"),
+                Pattern.compile("\""), Pattern.compile("–"), Pattern.compile("\t{2,}"), Pattern.compile(":"),
+                Pattern.compile("°"), Pattern.compile("\\?"), Pattern.compile("[()]"), Pattern.compile("-"),
+                Pattern.compile("\\."), Pattern.compile("\\["), Pattern.compile("\\]"), Pattern.compile(","),
+                Pattern.compile(" ", Pattern.LITERAL), Pattern.compile("/", Pattern.LITERAL), Pattern.compile("__")
+        };
+        private static String[] REPLACEMENTS = {
+                "'", "", "", "\"", "", "-", "\t", "", "", "", "", "", "_", "", "", "", "_", "_", "_"
+        };
+
+        Expr value;
+
+        Clean(Expr value) {
+            this.value = value;
+        }
+
+        static String clean(String s) {
+            for (int i = 0; i < PATTERNS.length; i++) {
+                s = PATTERNS[i].matcher(s).replaceAll(REPLACEMENTS[i]);
+            }
+            return s.toLowerCase();
+        }
+
+        @Override
+        String text(Frame frame) {
+            return clean(value.text(frame));
+        }
+    }
+
+    static class Cases extends Expr {
+        Condition[] conditions;
+        Expr[] values;
+        Expr otherwise;
+
+        Cases(Condition[] conditions, Expr[] values, Expr otherwise) {
+            this.conditions = conditions;
+            this.values = values;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        String text(Frame frame) {
+            for (int i = 0; i < conditions.length; i++) {
+                if (conditions[i].test(frame)) {
+                    return values[i].text(frame);
+                }
+            }
+            return otherwise.text(frame);
+        }
+    }
+
+    /**
+     * The value computed on the last element of an array that satisfies a condition
+     */
+    static class LastMatch extends Expr {
+        Source source;
+        Block item;
+        Condition when;
+        Expr value;
+        Expr otherwise;
+
+        LastMatch(Source source, Block item, Condition when, Expr value, Expr otherwise) {
+            this.source = source;
+            this.item = item;
+            this.when = when;
+            this.value = value;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        String text(Frame frame) {
+            String result = null;
+            JsonNode array = source.node(frame);
+            if (array != null && array.isArray()) {
+                for (JsonNode element : array) {
+                    Frame itemFrame = new Frame(item, element, frame);
+                    if (when.test(itemFrame)) {
+                        result = value.text(itemFrame);
+                    }
+                }
+            }
+            return result != null ? result : otherwise.text(frame);
+        }
+    }
+
+    // ---- Conditions
+
+    interface Condition {
+        boolean test(Frame frame);
+    }
+
+    static class Exists implements Condition {
+        int slot;
+
+        Exists(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean test(Frame frame) {
+            return frame.fields[slot] != null;
+        }
+    }
+
+    static class NotEmpty implements Condition {
+        Expr value;
+
+        NotEmpty(Expr value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(Frame frame) {
+            return !value.text(frame).isEmpty();
+        }
+    }
+
+    static class Equals implements Condition {
+        Expr value;
+        String expected;
+
+        Equals(Expr value, String expected) {
+            this.value = value;
+            this.expected = expected;
+        }
+
+        @Override
+        public boolean test(Frame frame) {
+            return value.text(frame).equals(expected);
+        }
+    }
+
+    static class Not implements Condition {
+        Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean test(Frame frame) {
+            return !condition.test(frame);
+        }
+    }
+
+    static class All implements Condition {
+        Condition[] conditions;
+        boolean any;
+
+        All(Condition[] conditions, boolean any) {
+            this.conditions = conditions;
+            this.any = any;
+        }
+
+        @Override
+        public boolean test(Frame frame) {
+            for (Condition condition : conditions) {
+                if (condition.test(frame) == any) {
+                    return any;
+                }
+            }
+            return !any;
+        }
+    }
+
+    // ---- Steps
+
+    static abstract class Step {
+        Condition when;
+
+        void execute(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            if (when == null || when.test(frame)) {
+                run(frame, out, registry);
+            }
+        }
+
+        abstract void run(Frame frame, List<Statement> out, EmitOnceRegistry registry);
+    }
+
+    /**
+     * The node a block is applied to: a field of the current node, or the node itself
+     */
+    static class Source {
+        int slot;
+
+        Source(int slot) {
+            this.slot = slot;
+        }
+
+        JsonNode node(Frame frame) {
+            return slot < 0 ? frame.node : frame.fields[slot];
+        }
+    }
+
+    /**
+     * A list of steps with the fields they read, the variables they define and the required fields
+     */
+    static class Block {
+        String name;
+        List<String> fieldNames = new ArrayList<>();
+        int varCount;
+        int[] required = new int[0];
+        int[] letSlots = new int[0];
+        Expr[] lets = new Expr[0];
+        boolean[] iriLets = new boolean[0];
+        Step[] steps = new Step[0];
+
+        Block(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Run the block in a frame created for it
+         */
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            for (int slot : required) {
+                if (frame.fields[slot] == null) {
+                    throw new IllegalArgumentException("Missing field " + fieldNames.get(slot) + " in " + name);
+                }
+            }
+            for (int i = 0; i < lets.length; i++) {
+                frame.vars[letSlots[i]] = iriLets[i] ? lets[i].resource(frame) : lets[i].text(frame);
+            }
+            for (Step step : steps) {
+                step.execute(frame, out, registry);
+            }
+        }
+    }
+
+    static class ForEach extends Step {
+        Source source;
+        Block block;
+
+        @Override
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            JsonNode array = source.node(frame);
+            if (array != null && array.isArray()) {
+                for (JsonNode element : array) {
+                    block.run(new Frame(block, element, frame), out, registry);
+                }
+            }
+        }
+    }
+
+    /**
+     * A nested block over a field of the node (skipped if it is missing) or over the node itself
+     */
+    static class Nested extends Step {
+        Source source;
+        Block block;
+
+        @Override
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            JsonNode node = source.node(frame);
+            if (node != null) {
+                block.run(new Frame(block, node, frame), out, registry);
+            }
+        }
+    }
+
+    /**
+     * A named mapping, which sees only its parameters
+     */
+    static class Apply extends Step {
+        Source source;
+        Block mapping;
+        Expr[] arguments;
+
+        @Override
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            JsonNode node = source.node(frame);
+            if (node == null) {
+                return;
+            }
+            Frame target = new Frame(mapping, node, null);
+            for (int i = 0; i < arguments.length; i++) {
+                Expr argument = arguments[i];
+                target.vars[i] = argument instanceof VarRef ? ((VarRef) argument).value(frame)
+                        : argument != null ? argument.text(frame) : "";
+            }
+            mapping.run(target, out, registry);
+        }
+    }
+
+    /**
+     * Statements describing a resource, each produced only the first time it is seen with an emit-once registry
+     */
+    static class EmitOnce extends Step {
+        Step[] steps;
+
+        @Override
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            if (registry == null) {
+                for (Step step : steps) {
+                    step.execute(frame, out, null);
+                }
+                return;
+            }
+            List<Statement> description = new ArrayList<>();
+            for (Step step : steps) {
+                step.execute(frame, description, registry);
+            }
+            out.addAll(registry.firstSight(description));
+        }
+    }
+
+    static class Triple extends Step {
+        Expr subject;
+        Expr predicate;
+        Property constantPredicate;
+        Expr object;
+        // IRI when both are null
+        String lang;
+        RDFDatatype datatype;
+        boolean literal;
+        RDFNode constantObject;
+
+        @Override
+        void run(Frame frame, List<Statement> out, EmitOnceRegistry registry) {
+            Property property = constantPredicate;
+            if (property == null) {
+                Resource resource = predicate.resource(frame);
+                property = resource instanceof Property ? (Property) resource : ResourceFactory.createProperty(resource.getURI());
+            }
+            RDFNode value = constantObject;
+            if (value == null) {
+                value = literal ? literal(object.text(frame)) : object.resource(frame);
+            }
+            out.add(ResourceFactory.createStatement(subject.resource(frame), property, value));
+        }
+
+        Literal literal(String text) {
+            if (lang != null) {
+                return ResourceFactory.createLangLiteral(text, lang);
+            }
+            if (datatype != null) {
+                return ResourceFactory.createTypedLiteral(text, datatype);
+            }
+            return ResourceFactory.createPlainLiteral(text);
+        }
+    }
+}
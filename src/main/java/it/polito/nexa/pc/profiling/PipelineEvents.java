@@ -0,0 +1,143 @@
+package it.polito.nexa.pc.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event types, one per stage. Only Profiling refers to this class, after it has
+ * checked that jdk.jfr is present.
+ */
+class PipelineEvents {
+
+    @Category({"Public Contracts", "Pipeline"})
+    @StackTrace(false)
+    abstract static class PipelineEvent extends Event implements Span {
+
+        @Label("Path")
+        @Description("Input file, chunk file or resource the stage worked on")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Lots")
+        long lots;
+
+        @Label("Triples")
+        long triples;
+
+        @Label("Entities")
+        long entities;
+
+        @Override
+        public boolean isRecording() {
+            return true;
+        }
+
+        @Override
+        public Span path(String path) {
+            this.path = path;
+            return this;
+        }
+
+        @Override
+        public Span bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public Span lots(long lots) {
+            this.lots = lots;
+            return this;
+        }
+
+        @Override
+        public Span triples(long triples) {
+            this.triples = triples;
+            return this;
+        }
+
+        @Override
+        public Span entities(long entities) {
+            this.entities = entities;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            end();
+            if (shouldCommit()) {
+                commit();
+            }
+        }
+    }
+
+    @Name("it.polito.nexa.pc.FileRead")
+    @Label("File Read")
+    static class FileRead extends PipelineEvent {
+    }
+
+    @Name("it.polito.nexa.pc.Parse")
+    @Label("JSON Parse")
+    static class Parse extends PipelineEvent {
+    }
+
+    @Name("it.polito.nexa.pc.Triplify")
+    @Label("Triplify")
+    static class Triplify extends PipelineEvent {
+    }
+
+    @Name("it.polito.nexa.pc.ChunkPublish")
+    @Label("Chunk Publish")
+    static class ChunkPublish extends PipelineEvent {
+    }
+
+    @Name("it.polito.nexa.pc.Alignment")
+    @Label("SPARQL Alignment")
+    static class Alignment extends PipelineEvent {
+    }
+
+    @Name("it.polito.nexa.pc.Labels")
+    @Label("Label Computation")
+    static class Labels extends PipelineEvent {
+    }
+
+    /**
+     * @return The started event, or null if no recording has enabled it
+     */
+    static Span begin(Stage stage) {
+        PipelineEvent event;
+        switch (stage) {
+            case FILE_READ:
+                event = new FileRead();
+                break;
+            case PARSE:
+                event = new Parse();
+                break;
+            case TRIPLIFY:
+                event = new Triplify();
+                break;
+            case CHUNK_PUBLISH:
+                event = new ChunkPublish();
+                break;
+            case ALIGNMENT:
+                event = new Alignment();
+                break;
+            default:
+                event = new Labels();
+                break;
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,73 @@
+package it.polito.nexa.pc.profiling;
+
+/**
+ * Entry point of the custom Flight Recorder events of the pipeline.
+ *
+ * The event classes extend jdk.jfr.Event and are loaded only if the running JVM has Flight
+ * Recorder; elsewhere, and when no recording has enabled the event of a stage, begin returns a
+ * shared span that does nothing, so the instrumented code only pays the check of a disabled
+ * event. The events are enabled with the settings in public-contracts.jfc, for instance
+ *
+ *   java -XX:StartFlightRecording=settings=default,settings=public-contracts.jfc,filename=run.jfr ...
+ */
+public class Profiling {
+
+    private static final boolean AVAILABLE = flightRecorderAvailable();
+
+    private static final Span NOT_RECORDING = new Span() {
+        @Override
+        public boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        public Span path(String path) {
+            return this;
+        }
+
+        @Override
+        public Span bytes(long bytes) {
+            return this;
+        }
+
+        @Override
+        public Span lots(long lots) {
+            return this;
+        }
+
+        @Override
+        public Span triples(long triples) {
+            return this;
+        }
+
+        @Override
+        public Span entities(long entities) {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    public static Span begin(Stage stage) {
+        if (!AVAILABLE) {
+            return NOT_RECORDING;
+        }
+        Span span = PipelineEvents.begin(stage);
+        return span != null ? span : NOT_RECORDING;
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean flightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Profiling.class.getClassLoader());
+            return jdk.jfr.FlightRecorder.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package it.polito.nexa.pc.profiling;
+
+/**
+ * One execution of a stage, from Profiling.begin to close(). The setters fill the fields of the
+ * event and return the span itself; the ones that do not apply to the stage are left at zero.
+ */
+public interface Span extends AutoCloseable {
+
+    /**
+     * @return false if no recording wants the event, so that costly values need not be computed
+     */
+    boolean isRecording();
+
+    Span path(String path);
+
+    Span bytes(long bytes);
+
+    Span lots(long lots);
+
+    Span triples(long triples);
+
+    Span entities(long entities);
+
+    /**
+     * End the stage and commit the event if it lasted more than the threshold of the recording
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,13 @@
+package it.polito.nexa.pc.profiling;
+
+/**
+ * The stages of the pipeline that are recorded as Flight Recorder events.
+ */
+public enum Stage {
+    FILE_READ,
+    PARSE,
+    TRIPLIFY,
+    CHUNK_PUBLISH,
+    ALIGNMENT,
+    LABELS
+}
@@ -0,0 +1,263 @@
+package it.polito.nexa.pc.services;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import it.polito.nexa.pc.ChunksMerger;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.HDTPublisher;
+import it.polito.nexa.pc.util.LatencyHistogram;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP service answering lookups over a generated dataset, which can be a HDT file,
+ * a TDB directory or N-Triples chunks loaded in memory. It runs in-process, with no external store.
+ *
+ *   GET /public_contracts/{id}              description of a contract
+ *   GET /public_contracts/{id}/tenders      tenders of a contract
+ *   GET /tenders/{id}                       description of a tender
+ *   GET /businessEntities/{id}              description of a business entity
+ *   GET /businessEntities/{id}/awarded      contracts awarded to a business entity
+ *   GET /sparql?query=...                   SPARQL endpoint
+ *   GET /metrics                            request count, cache hits and latency percentiles
+ *
+ * Lookups are prepared queries with the resource bound at execution time; responses are kept
+ * in an LRU cache.
+ */
+public class QueryService {
+
+    private static String BASE_URI = "http://public-contracts.nexacenter.org/id/";
+    private static String PC = "http://purl.org/procurement/public-contracts#";
+
+    private static Query DESCRIBE = QueryFactory.create(
+            "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }");
+    private static Query TENDERS = QueryFactory.create(
+            "CONSTRUCT { ?c <" + PC + "tender> ?t . ?t ?p ?o } WHERE { ?c <" + PC + "tender> ?t . ?t ?p ?o }");
+    private static Query AWARDED = QueryFactory.create(
+            "CONSTRUCT { ?c <" + PC + "awardedTender> ?t . ?t <" + PC + "bidder> ?e } "
+                    + "WHERE { ?t <" + PC + "bidder> ?e . ?c <" + PC + "awardedTender> ?t }");
+
+    private Model model;
+    private Map<String, byte[]> cache;
+    private LatencyHistogram latency = new LatencyHistogram();
+    private AtomicLong cacheHits = new AtomicLong();
+
+    public QueryService(Model model, final int cacheSize) {
+        this.model = model;
+        this.cache = new LinkedHashMap<String, byte[]>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 1) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: QueryService <dataset.hdt | tdbDirectory | chunk file or directory> [--tdb] [--port <port>] [--cache-size <responses>] [--threads <n>]");
+            System.exit(1);
+        }
+
+        long startTime = System.currentTimeMillis();
+        Model model = openDataset(options.getPositional().get(0), options.has("tdb"));
+        System.out.println("Dataset opened in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        QueryService service = new QueryService(model, options.getInt("cache-size", 10000));
+        service.start(options.getInt("port", 8080), options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static Model openDataset(String path, boolean tdb) throws IOException {
+        if (path.endsWith(".hdt")) {
+            return HDTPublisher.openHDT(path);
+        }
+        if (tdb) {
+            return TDBFactory.createDataset(path).getDefaultModel();
+        }
+        Model model = ModelFactory.createDefaultModel();
+        for (File chunk : ChunksMerger.listChunks(java.util.Collections.singletonList(path))) {
+            RDFDataMgr.read(model, chunk.getAbsolutePath());
+        }
+        return model;
+    }
+
+    public HttpServer start(int port, int threads) throws IOException {
+        // Small responses would otherwise wait for the delayed ACK of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        System.out.println("Query service listening on http://localhost:" + port + "/");
+        return server;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        int status = 200;
+        String contentType = "application/n-triples; charset=utf-8";
+        byte[] body;
+
+        try {
+            if (path.equals("/metrics")) {
+                contentType = "text/plain; charset=utf-8";
+                body = metrics().getBytes(StandardCharsets.UTF_8);
+            } else {
+                String key = exchange.getRequestURI().toString();
+                synchronized (cache) {
+                    body = cache.get(key);
+                }
+                if (body != null) {
+                    cacheHits.incrementAndGet();
+                } else {
+                    body = answer(path, query);
+                    if (body == null) {
+                        status = 404;
+                        body = "Not found\n".getBytes(StandardCharsets.UTF_8);
+                    } else {
+                        synchronized (cache) {
+                            cache.put(key, body);
+                        }
+                    }
+                }
+                if (path.equals("/sparql") && status == 200 && body.length > 0 && body[0] == '{') {
+                    contentType = "application/sparql-results+json";
+                }
+            }
+        } catch (QueryParseException | IllegalArgumentException e) {
+            status = 400;
+            contentType = "text/plain; charset=utf-8";
+            body = (errorMessage(e) + "\n").getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            // The store or the serialization failed, not the request
+            e.printStackTrace();
+            status = 500;
+            contentType = "text/plain; charset=utf-8";
+            body = ("Cannot answer the request: " + errorMessage(e) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        latency.recordSince(start);
+    }
+
+    /**
+     * @return The response body, or null if the path is not a known lookup
+     */
+    private byte[] answer(String path, String rawQuery) throws IOException {
+        String[] parts = path.split("/");
+        if (path.equals("/sparql")) {
+            String sparql = parameter(rawQuery, "query");
+            if (sparql == null) {
+                throw new IllegalArgumentException("Missing query parameter");
+            }
+            return sparql(QueryFactory.create(sparql));
+        }
+        if (parts.length == 3 && (parts[1].equals("public_contracts") || parts[1].equals("tenders")
+                || parts[1].equals("businessEntities"))) {
+            return construct(DESCRIBE, "s", BASE_URI + parts[1] + "/" + parts[2]);
+        }
+        if (parts.length == 4 && parts[1].equals("public_contracts") && parts[3].equals("tenders")) {
+            return construct(TENDERS, "c", BASE_URI + "public_contracts/" + parts[2]);
+        }
+        if (parts.length == 4 && parts[1].equals("businessEntities") && parts[3].equals("awarded")) {
+            return construct(AWARDED, "e", BASE_URI + "businessEntities/" + parts[2]);
+        }
+        return null;
+    }
+
+    private byte[] construct(Query query, String variable, String uri) {
+        QuerySolutionMap binding = new QuerySolutionMap();
+        binding.add(variable, ResourceFactory.createResource(uri));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        model.enterCriticalSection(Lock.READ);
+        try (QueryExecution qe = QueryExecutionFactory.create(query, model, binding)) {
+            RDFDataMgr.write(out, qe.execConstruct(), RDFFormat.NTRIPLES);
+        } finally {
+            model.leaveCriticalSection();
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] sparql(Query query) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        model.enterCriticalSection(Lock.READ);
+        try (QueryExecution qe = QueryExecutionFactory.create(query, model)) {
+            if (query.isSelectType()) {
+                ResultSetFormatter.outputAsJSON(out, qe.execSelect());
+            } else if (query.isAskType()) {
+                ResultSetFormatter.outputAsJSON(out, qe.execAsk());
+            } else if (query.isConstructType()) {
+                RDFDataMgr.write(out, qe.execConstruct(), RDFFormat.NTRIPLES);
+            } else {
+                RDFDataMgr.write(out, qe.execDescribe(), RDFFormat.NTRIPLES);
+            }
+        } finally {
+            model.leaveCriticalSection();
+        }
+        return out.toByteArray();
+    }
+
+    public String metrics() {
+        int cached;
+        synchronized (cache) {
+            cached = cache.size();
+        }
+        return "requests_latency " + latency.summary() + "\n"
+                + "cache_hits " + cacheHits.get() + "\n"
+                + "cache_entries " + cached + "\n";
+    }
+
+    private static String errorMessage(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private static String parameter(String rawQuery, String name) throws IOException {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
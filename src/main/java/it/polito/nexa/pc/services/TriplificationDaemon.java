@@ -0,0 +1,491 @@
+package it.polito.nexa.pc.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.DedupTriplesStore;
+import it.polito.nexa.pc.MemoryGovernor;
+import it.polito.nexa.pc.triplifiers.PublicContractsTriplifier;
+import it.polito.nexa.pc.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running triplification of the JSON files dropped in the input tree. The tree is watched
+ * with a WatchService; the events of a file are debounced until it has been quiet (and its size
+ * stable) for a while, then the file is put in a bounded queue. A single worker, with a parser and
+ * a triplifier kept warm for the whole life of the daemon, adds the statements to the current
+ * segment, which is published as N-Triples when it is old or large enough.
+ *
+ * A full queue blocks the debouncer, so bursts of files wait as pending paths instead of parsed
+ * documents; if the watch service overflows the tree is scanned again. The time between the first
+ * event of a file and the publication of its segment is measured in a LatencyHistogram.
+ *
+ * Segments are append-only: when a file already triplified is modified its new statements go to a
+ * later segment, and the earlier ones are not retracted, since other files may share them. Every
+ * modified or deleted file is appended to replaced.tsv in the segments directory with the segment
+ * that holds its previous version, so that a store can reload the graphs it affects.
+ */
+public class TriplificationDaemon {
+
+    private static ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private Path inputDir;
+    private File segmentsDir;
+    private long debounceMillis;
+    private int segmentFiles;
+    private long segmentMillis;
+
+    private WatchService watchService;
+    private Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private Set<Path> registeredDirs = new HashSet<>();
+    // Path -> {first event, last event, size at last event}; guarded by itself
+    private Map<Path, long[]> pending = new HashMap<>();
+    private BlockingQueue<Pending> queue;
+    // Modification time and segment of the files already triplified, so that rescans skip them;
+    // the segment is 0 until the segment holding the file is published
+    private Map<Path, long[]> triplified = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private PublicContractsTriplifier triplifier = new PublicContractsTriplifier();
+    private DedupTriplesStore segment = new DedupTriplesStore();
+    private List<Long> segmentArrivals = new ArrayList<>();
+    // The entries of triplified and the superseded versions waiting for the segment in progress
+    private List<long[]> segmentEntries = new ArrayList<>();
+    private List<String[]> segmentReplaced = new ArrayList<>();
+    private long segmentStart = System.currentTimeMillis();
+    private volatile int segmentNumber = 0;
+    private long publishBackoff = 0;
+    private long publishRetryAt = 0;
+    private String runName = new SimpleDateFormat("yyyy-MM-dd" + "_" + "HH-mm-ss").format(new Date());
+
+    private LatencyHistogram latency = new LatencyHistogram();
+    private AtomicLong triplifiedFiles = new AtomicLong();
+    private AtomicLong failedFiles = new AtomicLong();
+    private AtomicLong overflows = new AtomicLong();
+    private MemoryGovernor governor = null;
+
+    private static class Pending {
+        Path path;
+        long arrival;
+
+        Pending(Path path, long arrival) {
+            this.path = path;
+            this.arrival = arrival;
+        }
+    }
+
+    public TriplificationDaemon(Path inputDir, File outputDir, long debounceMillis, int queueSize,
+                                int segmentFiles, long segmentMillis) throws IOException {
+        this.inputDir = inputDir;
+        this.segmentsDir = new File(outputDir, "rdf-segments");
+        this.segmentsDir.mkdirs();
+        this.debounceMillis = debounceMillis;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.segmentFiles = segmentFiles;
+        this.segmentMillis = segmentMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getPositional().size() != 2) {
+            System.err.println("Number of arguments is wrong!");
+            System.err.println("Usage: TriplificationDaemon <inputDir> <outputDir> [--initial-scan] [--debounce-ms <ms>]"
+                    + " [--queue-size <files>] [--segment-files <files>] [--segment-seconds <s>] [--metrics-port <port>]"
+                    + " [--memory-high <percent>] [--memory-critical <percent>] [--no-memory-governor]");
+            System.exit(1);
+        }
+        final TriplificationDaemon daemon = new TriplificationDaemon(Paths.get(options.getPositional().get(0)).toAbsolutePath().normalize(),
+                new File(options.getPositional().get(1)), options.getLong("debounce-ms", 500),
+                options.getInt("queue-size", 10000), options.getInt("segment-files", 5000),
+                options.getLong("segment-seconds", 5) * 1000);
+        daemon.governor = MemoryGovernor.fromOptions(options, 1, options.getInt("segment-files", 5000));
+        if (options.has("metrics-port")) {
+            daemon.startMetrics(options.getInt("metrics-port", 8081));
+        }
+        daemon.run(options.has("initial-scan"));
+    }
+
+    /**
+     * Watch the tree until the JVM is stopped; the segment in progress is published on shutdown
+     * @param initialScan Triplify also the files already in the tree
+     */
+    public void run(boolean initialScan) throws IOException, InterruptedException {
+        registerTree(inputDir, initialScan);
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "triplification-worker");
+        Thread debouncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                debounce();
+            }
+        }, "triplification-debouncer");
+        debouncer.setDaemon(true);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                running = false;
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        worker.start();
+        debouncer.start();
+        System.out.println("Watching " + inputDir + ", segments in " + segmentsDir);
+        watch();
+    }
+
+    private void watch() throws IOException, InterruptedException {
+        while (running) {
+            WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+            if (key == null) {
+                continue;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost: every file of the tree is checked again
+                    overflows.incrementAndGet();
+                    registerTree(inputDir, true);
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    deleted(path);
+                } else if (Files.isDirectory(path)) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        registerTree(path, true);
+                    }
+                } else {
+                    touch(path);
+                }
+            }
+            if (!key.reset()) {
+                registeredDirs.remove(watchedDirs.remove(key));
+            }
+        }
+    }
+
+    private void registerTree(Path root, final boolean addFiles) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (registeredDirs.add(dir)) {
+                    watchedDirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (addFiles) {
+                    touch(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Record an event of a file, which is queued once it is quiet
+     */
+    private void touch(Path path) {
+        String fileName = path.getFileName().toString();
+        if (!fileName.toLowerCase().endsWith(".json") || fileName.equals("stats.json")
+                || fileName.equals("proposingStructure.json") || fileName.equals("proposingStructures.json")
+                || fileName.equals("downloadStats.json") || fileName.contains("_index")) {
+            return;
+        }
+        long[] done = triplified.get(path);
+        if (done != null && done[0] == path.toFile().lastModified()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long size = path.toFile().length();
+        synchronized (pending) {
+            long[] times = pending.get(path);
+            if (times == null) {
+                pending.put(path, new long[]{now, now, size});
+            } else {
+                times[1] = now;
+                times[2] = size;
+            }
+        }
+    }
+
+    /**
+     * Forget a deleted file, or the files of a deleted directory
+     */
+    private void deleted(Path path) {
+        synchronized (pending) {
+            pending.remove(path);
+        }
+        long[] done = triplified.remove(path);
+        if (done != null) {
+            replaced(path, "deleted", done);
+            return;
+        }
+        Iterator<Map.Entry<Path, long[]>> entries = triplified.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, long[]> entry = entries.next();
+            if (entry.getKey().startsWith(path)) {
+                replaced(entry.getKey(), "deleted", entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Append a superseded version of a file to replaced.tsv, or keep it until the segment in
+     * progress is published if that segment holds the previous version
+     * @param entry The modification time and segment of the previous version
+     */
+    private synchronized void replaced(Path path, String reason, long[] entry) {
+        if (entry[1] == 0) {
+            segmentReplaced.add(new String[]{path.toString(), reason});
+        } else {
+            writeReplaced(path.toString(), reason, entry[1]);
+        }
+    }
+
+    private void writeReplaced(String path, String reason, long segment) {
+        String line = System.currentTimeMillis() + "\t" + reason + "\t" + path + "\t"
+                + runName + "_segment_" + segment + ".nt\n";
+        try (OutputStream out = new FileOutputStream(new File(segmentsDir, "replaced.tsv"), true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Error writing replaced.tsv: " + e.getMessage());
+        }
+    }
+
+    private void debounce() {
+        while (true) {
+            List<Pending> ready = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            synchronized (pending) {
+                Iterator<Map.Entry<Path, long[]>> entries = pending.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<Path, long[]> entry = entries.next();
+                    long[] times = entry.getValue();
+                    if (now - times[1] < debounceMillis) {
+                        continue;
+                    }
+                    long size = entry.getKey().toFile().length();
+                    if (size != times[2]) {
+                        // Still being written
+                        times[1] = now;
+                        times[2] = size;
+                        continue;
+                    }
+                    ready.add(new Pending(entry.getKey(), times[0]));
+                    entries.remove();
+                }
+            }
+            try {
+                for (Pending file : ready) {
+                    // Blocks while the worker is behind
+                    queue.put(file);
+                }
+                Thread.sleep(Math.max(10, debounceMillis / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        List<Pending> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, 1000);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (Pending file : batch) {
+                triplify(file);
+                if (governor != null) {
+                    // Under memory pressure the segment is published before it is full
+                    governor.update();
+                    if (governor.shouldFlush(segmentArrivals.size())) {
+                        publishSegment();
+                    }
+                }
+            }
+            batch.clear();
+            if (segmentArrivals.size() >= segmentFiles
+                    || (!segmentArrivals.isEmpty() && System.currentTimeMillis() - segmentStart >= segmentMillis)) {
+                publishSegment();
+            }
+        }
+        if (!segmentArrivals.isEmpty()) {
+            writeSegment();
+        }
+    }
+
+    private void triplify(Pending file) {
+        if (segmentArrivals.isEmpty()) {
+            segmentStart = System.currentTimeMillis();
+        }
+        // The segment of the file is known once the segment in progress is published
+        long[] entry = new long[]{file.path.toFile().lastModified(), 0};
+        long[] previous = triplified.put(file.path, entry);
+        if (previous != null) {
+            replaced(file.path, "modified", previous);
+        }
+        segmentEntries.add(entry);
+        try {
+            JsonNode rootNode = JSON_MAPPER.readTree(file.path.toFile());
+            segment.add(triplifier.triplifyJSON(rootNode, file.path.toString()));
+            triplifiedFiles.incrementAndGet();
+        } catch (IOException e) {
+            failedFiles.incrementAndGet();
+            System.out.println("Cannot triplify " + file.path + ": " + e.getMessage());
+        }
+        segmentArrivals.add(file.arrival);
+    }
+
+    /**
+     * Publish the segment, unless a previous attempt failed recently: after a failure the segment
+     * keeps growing and is retried with an exponential backoff, up to one minute
+     */
+    private void publishSegment() {
+        long now = System.currentTimeMillis();
+        if (now < publishRetryAt) {
+            return;
+        }
+        if (writeSegment()) {
+            publishBackoff = 0;
+            publishRetryAt = 0;
+        } else {
+            publishBackoff = Math.min(60000, Math.max(1000, publishBackoff * 2));
+            publishRetryAt = now + publishBackoff;
+            System.out.println("Retrying in " + publishBackoff / 1000 + " s");
+        }
+    }
+
+    /**
+     * Write the segment under a temporary name and rename it, so readers only see complete segments.
+     * The segment number is taken only when the segment is published.
+     * @return false if the segment could not be written, it is then kept for the next attempt
+     */
+    private boolean writeSegment() {
+        int number = segmentNumber + 1;
+        File output = new File(segmentsDir, runName + "_segment_" + number + ".nt");
+        File tmp = new File(segmentsDir, output.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            segment.writeNTriples(out);
+        } catch (IOException e) {
+            System.out.println("Error writing " + output + ": " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        try {
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error publishing " + output + ": " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        synchronized (this) {
+            segmentNumber = number;
+            for (long[] entry : segmentEntries) {
+                entry[1] = number;
+            }
+            for (String[] replaced : segmentReplaced) {
+                writeReplaced(replaced[0], replaced[1], number);
+            }
+            segmentEntries.clear();
+            segmentReplaced.clear();
+        }
+        long now = System.currentTimeMillis();
+        for (long arrival : segmentArrivals) {
+            latency.record((now - arrival) * 1000);
+        }
+        System.out.println("Published " + output.getName() + " (" + segmentArrivals.size() + " files, "
+                + segment.size() + " triples), ingest to publish " + latency.summary());
+        segment = new DedupTriplesStore();
+        segmentArrivals.clear();
+        return true;
+    }
+
+    public String metrics() {
+        int waiting;
+        synchronized (pending) {
+            waiting = pending.size();
+        }
+        return "ingest_to_publish " + latency.summary() + "\n"
+                + "triplified_files " + triplifiedFiles.get() + "\n"
+                + "failed_files " + failedFiles.get() + "\n"
+                + "tracked_files " + triplified.size() + "\n"
+                + "pending_files " + waiting + "\n"
+                + "queued_files " + queue.size() + "\n"
+                + "watch_overflows " + overflows.get() + "\n"
+                + "segments " + segmentNumber + "\n"
+                + (governor != null ? governor.metrics() : "");
+    }
+
+    public HttpServer startMetrics(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = metrics().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        System.out.println("Metrics on http://localhost:" + port + "/metrics");
+        return server;
+    }
+}
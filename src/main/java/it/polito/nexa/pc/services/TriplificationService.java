@@ -0,0 +1,160 @@
+package it.polito.nexa.pc.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import it.polito.nexa.pc.CommandLineOptions;
+import it.polito.nexa.pc.triplifiers.PublicContractsTriplifier;
+import it.polito.nexa.pc.util.LatencyHistogram;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP service converting a single ANAC JSON document on demand.
+ *
+ *   POST /triplify[?format=turtle]   JSON in the body, N-Triples (default) or Turtle in the response;
+ *                                    422 with the error if the document cannot be triplified
+ *   GET  /metrics                    request count, errors and latency percentiles
+ *
+ * A single PublicContractsTriplifier and ObjectMapper are shared by all the requests, which are
+ * served by a fixed pool of threads (the project targets Java 8, so there are no virtual threads);
+ * the response is streamed with chunked encoding.
+ */
+public class TriplificationService {
+
+    private static ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private PublicContractsTriplifier triplifier = new PublicContractsTriplifier();
+    private int maxBodyBytes;
+    private LatencyHistogram latency = new LatencyHistogram();
+    private AtomicLong errors = new AtomicLong();
+
+    public TriplificationService(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        TriplificationService service = new TriplificationService(options.getInt("max-body-kb", 10240) * 1024);
+        service.start(options.getInt("port", 8082), options.getInt("threads", 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public HttpServer start(int port, int threads) throws IOException {
+        // Without TCP_NODELAY every small response waits for the delayed ACK of the client (~40 ms).
+        // The property is read when the first server of the JVM is created.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/triplify", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                triplify(exchange);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain; charset=utf-8", metrics());
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        System.out.println("Triplification service listening on http://localhost:" + port + "/triplify");
+        return server;
+    }
+
+    private void triplify(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "text/plain; charset=utf-8", "Use POST with a JSON body\n");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                send(exchange, 413, "text/plain; charset=utf-8", "Body larger than " + maxBodyBytes + " bytes\n");
+                return;
+            }
+            JsonNode rootNode;
+            try {
+                rootNode = JSON_MAPPER.readTree(body);
+            } catch (IOException e) {
+                send(exchange, 400, "text/plain; charset=utf-8", "Invalid JSON: " + e.getMessage() + "\n");
+                return;
+            }
+            if (rootNode == null || !rootNode.isObject()) {
+                send(exchange, 400, "text/plain; charset=utf-8", "Expected a JSON object\n");
+                return;
+            }
+
+            final Exception[] failure = new Exception[1];
+            List<Statement> statements = triplifier.triplifyJSON(rootNode, "request from " + exchange.getRemoteAddress(),
+                    e -> failure[0] = e);
+            if (failure[0] != null) {
+                String message = failure[0].getMessage() != null ? failure[0].getMessage() : failure[0].getClass().getName();
+                send(exchange, 422, "text/plain; charset=utf-8", "Cannot triplify the document: " + message + "\n");
+                return;
+            }
+            Model model = ModelFactory.createDefaultModel();
+            model.add(statements);
+            boolean turtle = "format=turtle".equals(exchange.getRequestURI().getRawQuery());
+            exchange.getResponseHeaders().set("Content-Type",
+                    turtle ? "text/turtle; charset=utf-8" : "application/n-triples; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 16 * 1024)) {
+                RDFDataMgr.write(out, model, turtle ? Lang.TURTLE : Lang.NTRIPLES);
+            }
+        } finally {
+            latency.recordSince(start);
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The body, or null if it is larger than the limit
+     */
+    private byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+            if (body.size() > maxBodyBytes) {
+                return null;
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        if (status >= 400) {
+            errors.incrementAndGet();
+        }
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public String metrics() {
+        return "triplify_latency " + latency.summary() + "\n"
+                + "triplify_errors " + errors.get() + "\n";
+    }
+}
@@ -0,0 +1,276 @@
+package it.polito.nexa.pc.statistics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Totals of agreedPrice (importoAggiudicazione) and payments (importoSommeLiquidate) per
+ * contracting authority, year and procedure type, computed while the records are triplified.
+ *
+ * Authorities and procedure types are dictionary encoded; the three dimensions are packed in a
+ * long key of an open-addressing table whose values live in primitive arrays. Statistics built
+ * by different workers or shards are combined with merge().
+ */
+public class SpendingStatistics {
+
+    private List<String> authorities = new ArrayList<>();
+    private Map<String, Integer> authorityIds = new HashMap<>();
+    private List<String> procedures = new ArrayList<>();
+    private Map<String, Integer> procedureIds = new HashMap<>();
+
+    // Open-addressing table: key -> cell index + 1
+    private long[] keys = new long[1024];
+    private int[] table = new int[2048];
+    private int cells = 0;
+
+    private long[] contracts = new long[1024];
+    private double[] agreedPrice = new double[1024];
+    private long[] payments = new long[1024];
+    private double[] paidAmount = new double[1024];
+
+    private long invalidAmounts = 0;
+
+    /**
+     * Add the lots of a parsed ANAC JSON, both with the "data"/"lotto" layout and with a single lot
+     */
+    public synchronized void addJson(JsonNode rootNode) {
+        JsonNode data = rootNode.get("data");
+        if (data != null) {
+            JsonNode lots = data.get("lotto");
+            if (lots != null) {
+                for (JsonNode record : lots) {
+                    addRecord(record);
+                }
+            }
+        } else {
+            addRecord(rootNode);
+        }
+    }
+
+    private void addRecord(JsonNode record) {
+        String authority = getValue("cfStrutturaProponenteANAC", record);
+        if (authority.equals("") && record.get("strutturaProponente") != null
+                && record.get("strutturaProponente").get(0) != null) {
+            authority = getValue("codiceFiscaleProp", record.get("strutturaProponente").get(0));
+        }
+        int year = 0;
+        try {
+            year = Integer.parseInt(getValue("annoRiferimento", record));
+        } catch (NumberFormatException e) {
+            // Unknown year
+        }
+        int cell = cell(id(authority, authorities, authorityIds), year, id(getValue("sceltaContraente", record), procedures, procedureIds));
+
+        contracts[cell]++;
+        String price = getValue("importoAggiudicazione", record);
+        if (!price.equals("")) {
+            try {
+                agreedPrice[cell] += Double.parseDouble(price);
+            } catch (NumberFormatException e) {
+                invalidAmounts++;
+            }
+        }
+        String paid = getValue("importoSommeLiquidate", record);
+        if (!paid.equals("")) {
+            try {
+                paidAmount[cell] += Double.parseDouble(paid);
+                payments[cell]++;
+            } catch (NumberFormatException e) {
+                invalidAmounts++;
+            }
+        }
+    }
+
+    /**
+     * Add the totals computed by another worker
+     */
+    public synchronized void merge(SpendingStatistics other) {
+        synchronized (other) {
+            for (int i = 0; i < other.cells; i++) {
+                long key = other.keys[i];
+                int authority = id(other.authorities.get((int) (key >>> 32)), authorities, authorityIds);
+                int procedure = id(other.procedures.get((int) (key & 0xffff)), procedures, procedureIds);
+                int cell = cell(authority, (int) ((key >>> 16) & 0xffff), procedure);
+                contracts[cell] += other.contracts[i];
+                agreedPrice[cell] += other.agreedPrice[i];
+                payments[cell] += other.payments[i];
+                paidAmount[cell] += other.paidAmount[i];
+            }
+            invalidAmounts += other.invalidAmounts;
+        }
+    }
+
+    /**
+     * Write the cells in a binary form that can be merged later with mergeSnapshot()
+     */
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(cells);
+        for (int i = 0; i < cells; i++) {
+            out.writeUTF(authorities.get((int) (keys[i] >>> 32)));
+            out.writeShort((int) ((keys[i] >>> 16) & 0xffff));
+            out.writeUTF(procedures.get((int) (keys[i] & 0xffff)));
+            out.writeLong(contracts[i]);
+            out.writeDouble(agreedPrice[i]);
+            out.writeLong(payments[i]);
+            out.writeDouble(paidAmount[i]);
+        }
+        out.writeLong(invalidAmounts);
+    }
+
+    public synchronized void mergeSnapshot(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            int authority = id(in.readUTF(), authorities, authorityIds);
+            int year = in.readShort() & 0xffff;
+            int cell = cell(authority, year, id(in.readUTF(), procedures, procedureIds));
+            contracts[cell] += in.readLong();
+            agreedPrice[cell] += in.readDouble();
+            payments[cell] += in.readLong();
+            paidAmount[cell] += in.readDouble();
+        }
+        invalidAmounts += in.readLong();
+    }
+
+    /**
+     * Write the cells and the totals per authority, year and procedure type as JSON
+     */
+    public synchronized void writeJSON(File output) throws IOException {
+        Map<String, double[]> byAuthority = new TreeMap<>();
+        Map<String, double[]> byYear = new TreeMap<>();
+        Map<String, double[]> byProcedure = new TreeMap<>();
+        List<Map<String, Object>> cellList = new ArrayList<>();
+
+        for (int i = 0; i < cells; i++) {
+            String authority = authorities.get((int) (keys[i] >>> 32));
+            String year = String.valueOf((keys[i] >>> 16) & 0xffff);
+            String procedure = procedures.get((int) (keys[i] & 0xffff));
+
+            Map<String, Object> cell = new LinkedHashMap<>();
+            cell.put("contractingAuthority", authority);
+            cell.put("year", year);
+            cell.put("procedureType", procedure);
+            putTotals(cell, new double[]{contracts[i], agreedPrice[i], payments[i], paidAmount[i]});
+            cellList.add(cell);
+
+            accumulate(byAuthority, authority, i);
+            accumulate(byYear, year, i);
+            accumulate(byProcedure, procedure, i);
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("byContractingAuthority", totals(byAuthority));
+        summary.put("byYear", totals(byYear));
+        summary.put("byProcedureType", totals(byProcedure));
+        summary.put("cells", cellList);
+        summary.put("invalidAmounts", invalidAmounts);
+
+        if (output.getAbsoluteFile().getParentFile() != null) {
+            output.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        new ObjectMapper().configure(SerializationFeature.INDENT_OUTPUT, true).writeValue(output, summary);
+    }
+
+    public synchronized int size() {
+        return cells;
+    }
+
+    private void accumulate(Map<String, double[]> rollup, String key, int i) {
+        double[] totals = rollup.get(key);
+        if (totals == null) {
+            totals = new double[4];
+            rollup.put(key, totals);
+        }
+        totals[0] += contracts[i];
+        totals[1] += agreedPrice[i];
+        totals[2] += payments[i];
+        totals[3] += paidAmount[i];
+    }
+
+    private static Map<String, Object> totals(Map<String, double[]> rollup) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> e : rollup.entrySet()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            putTotals(values, e.getValue());
+            result.put(e.getKey(), values);
+        }
+        return result;
+    }
+
+    private static void putTotals(Map<String, Object> values, double[] totals) {
+        values.put("contracts", (long) totals[0]);
+        values.put("agreedPrice", totals[1]);
+        values.put("payments", (long) totals[2]);
+        values.put("paidAmount", totals[3]);
+    }
+
+    private static int id(String value, List<String> values, Map<String, Integer> ids) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            values.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Find or create the cell of the given dimensions
+     */
+    private int cell(int authority, int year, int procedure) {
+        long key = ((long) authority << 32) | ((long) (year & 0xffff) << 16) | (procedure & 0xffff);
+        int mask = table.length - 1;
+        int i = mix(key) & mask;
+        while (table[i] != 0) {
+            if (keys[table[i] - 1] == key) {
+                return table[i] - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        if (cells == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            contracts = Arrays.copyOf(contracts, capacity);
+            agreedPrice = Arrays.copyOf(agreedPrice, capacity);
+            payments = Arrays.copyOf(payments, capacity);
+            paidAmount = Arrays.copyOf(paidAmount, capacity);
+        }
+        keys[cells] = key;
+        table[i] = ++cells;
+        if (cells * 2 > table.length) {
+            table = new int[table.length * 2];
+            mask = table.length - 1;
+            for (int c = 0; c < cells; c++) {
+                int j = mix(keys[c]) & mask;
+                while (table[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                table[j] = c + 1;
+            }
+        }
+        return cells - 1;
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static String getValue(String string, JsonNode record) {
+        return record.get(string) != null ? record.get(string).asText() : "";
+    }
+}
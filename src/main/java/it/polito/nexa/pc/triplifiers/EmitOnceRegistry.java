@@ -0,0 +1,170 @@
+package it.polito.nexa.pc.triplifiers;
+
+import com.hp.hpl.jena.rdf.model.Statement;
+import it.polito.nexa.pc.util.Hashing;
+import it.polito.nexa.pc.util.LongHashSet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// This class remembers which descriptive statements have already been written during a run
+// Statements are keyed one by one, so a later mention of a resource still adds the roles,
+// members and identifiers that the earlier ones did not have
+// A caller that may still reject a document (for instance when it exceeds its time budget)
+// collects the marks of its thread between begin and end, and commits them only on acceptance
+
+public class EmitOnceRegistry {
+
+    private LongHashSet described = new LongHashSet(1 << 16);
+    private long suppressedStatements = 0;
+    private long suppressedBytes = 0;
+    // The marks of the document being triplified by each thread, not yet accepted
+    private ThreadLocal<Marks> pending = new ThreadLocal<>();
+
+    /**
+     * Statements first seen while triplifying a document, registered only when it is accepted
+     */
+    public static class Marks {
+        private LongHashSet hashes = new LongHashSet(64);
+        private long suppressedStatements = 0;
+        private long suppressedBytes = 0;
+    }
+
+    /**
+     * Collect the marks of the current thread instead of registering them, until end is called
+     * @return false if the thread is already collecting, the marks then go to the outer caller
+     *
+     */
+    public boolean begin() {
+        if (pending.get() != null) {
+            return false;
+        }
+        pending.set(new Marks());
+        return true;
+    }
+
+    /**
+     * Drop the marks collected so far by the current thread, for a document that failed
+     *
+     */
+    public void discard() {
+        if (pending.get() != null) {
+            pending.set(new Marks());
+        }
+    }
+
+    /**
+     * Stop collecting the marks of the current thread
+     * @return The marks to commit if the document is accepted
+     *
+     */
+    public Marks end() {
+        Marks marks = pending.get();
+        pending.remove();
+        return marks;
+    }
+
+    /**
+     * Register the marks of an accepted document
+     *
+     */
+    public synchronized void commit(Marks marks) {
+        for (long hash : marks.hashes.toArray()) {
+            described.add(hash);
+        }
+        suppressedStatements += marks.suppressedStatements;
+        suppressedBytes += marks.suppressedBytes;
+    }
+
+    /**
+     * Keep the statements of a description that have not been written yet
+     * @param description The statements describing a business entity or a group
+     * @return The statements seen for the first time in the run, in their order
+     *
+     */
+    public synchronized List<Statement> firstSight(List<Statement> description) {
+        Marks marks = pending.get();
+        List<Statement> fresh = new ArrayList<>(description.size());
+        for (Statement statement : description) {
+            long hash = hash(statement);
+            boolean first = marks == null ? described.add(hash) : !described.contains(hash) && marks.hashes.add(hash);
+            if (first) {
+                fresh.add(statement);
+            } else if (marks == null) {
+                suppressedStatements++;
+                suppressedBytes += size(statement);
+            } else {
+                marks.suppressedStatements++;
+                marks.suppressedBytes += size(statement);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * 64-bit hash of the N-Triples form of a statement, a literal object is marked so that it
+     * does not collide with an IRI of the same text
+     */
+    static long hash(Statement statement) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(statement.getSubject()).append(' ').append(statement.getPredicate()).append(' ');
+        if (statement.getObject().isLiteral()) {
+            sb.append('"');
+        }
+        sb.append(statement.getObject());
+        return Hashing.hash64(sb);
+    }
+
+    /**
+     * Approximate size of the N-Triples line of a statement
+     */
+    private static long size(Statement statement) {
+        return statement.getSubject().toString().length() + statement.getPredicate().toString().length()
+                + statement.getObject().toString().length() + 8;
+    }
+
+    /**
+     * Write the hashes of the described statements and the counters, used by checkpoints
+     * @param out The stream of the checkpoint
+     *
+     */
+    public synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        long[] hashes = described.toArray();
+        out.writeInt(hashes.length);
+        for (long hash : hashes) {
+            out.writeLong(hash);
+        }
+        out.writeLong(suppressedStatements);
+        out.writeLong(suppressedBytes);
+    }
+
+    /**
+     * Restore the state written by writeSnapshot
+     * @param in The stream of the checkpoint
+     *
+     */
+    public synchronized void readSnapshot(DataInputStream in) throws IOException {
+        described.clear();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            described.add(in.readLong());
+        }
+        suppressedStatements = in.readLong();
+        suppressedBytes = in.readLong();
+    }
+
+    public synchronized int getDescribedStatements() {
+        return described.size();
+    }
+
+    public synchronized long getSuppressedStatements() {
+        return suppressedStatements;
+    }
+
+    public synchronized long getSuppressedBytes() {
+        return suppressedBytes;
+    }
+}
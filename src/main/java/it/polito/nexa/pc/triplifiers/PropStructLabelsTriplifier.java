@@ -7,9 +7,14 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.vocabulary.RDFS;
+import it.polito.nexa.pc.businessEntities.Company;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class PropStructLabelsTriplifier implements JSONTriplifier {
@@ -47,6 +52,35 @@ public class PropStructLabelsTriplifier implements JSONTriplifier {
         return results;
     }
 
+    /**
+     * Create the labels of the business entities directly from the aggregated companies,
+     * without writing and parsing businessEntities.json
+     * @param companies The companies collected while scanning the public contracts
+     * @return A list of Jena Statements
+     *
+     */
+    public List<Statement> triplifyCompanies(Collection<Company> companies) {
+        List<Statement> results = new ArrayList<>();
+        try (Span span = Profiling.begin(Stage.LABELS)) {
+            for (Company company : companies) {
+                Resource subject = ResourceFactory.createResource(BASE_URI +
+                                                                "businessEntities/" +
+                                                                cleanString(company.getId()));
+
+                Literal label = ResourceFactory.createLangLiteral(company.getBestLabel(), "it");
+                results.add(ResourceFactory.createStatement(subject, RDFS.label, label));
+
+                Statement vatID = ResourceFactory.createStatement(
+                        subject,
+                        ResourceFactory.createProperty("http://purl.org/goodrelations/v1#", "vatID"),
+                        ResourceFactory.createPlainLiteral(cleanString(company.getId())));
+                results.add(vatID);
+            }
+            span.entities(companies.size()).triples(results.size());
+        }
+        return results;
+    }
+
     public String cleanString(String s) {
         s = s.replaceAll("´", "'")
                 .replaceAll("’", "")
@@ -6,21 +6,63 @@ import com.hp.hpl.jena.datatypes.xsd.impl.XSDDateType;
 import com.hp.hpl.jena.rdf.model.*;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hp.hpl.jena.sparql.vocabulary.FOAF;
 import com.hp.hpl.jena.vocabulary.DCTerms;
 import com.hp.hpl.jena.vocabulary.RDF;
 import com.hp.hpl.jena.vocabulary.RDFS;
-
+import it.polito.nexa.pc.Quarantine;
+import it.polito.nexa.pc.importers.JSONTreeReader;
+import it.polito.nexa.pc.mapping.MappingPlan;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 // This class creates triples of Italian public contracts
+// It keeps no state of the contract being converted, so one instance can serve concurrent callers
 
 public class PublicContractsTriplifier implements JSONTriplifier {
 
     private static String BASE_URI = "http://public-contracts.nexacenter.org/id/";
 
+    private EmitOnceRegistry emitOnceRegistry = null;
+    private MappingPlan mapping = null;
+    private Quarantine quarantine = null;
+
+    /**
+     * Write each statement describing a business entity or a group only the first time it is produced
+     * @param emitOnceRegistry The registry shared by the whole run, or null to describe them in every contract
+     *
+     */
+    public void setEmitOnceRegistry(EmitOnceRegistry emitOnceRegistry) {
+        this.emitOnceRegistry = emitOnceRegistry;
+    }
+
+    public EmitOnceRegistry getEmitOnceRegistry() {
+        return emitOnceRegistry;
+    }
+
+    /**
+     * Produce the statements with a compiled declarative mapping instead of the code of this class
+     * @param mapping The plan of a spec such as MappingPlan.DEFAULT_SPEC, or null to use the code below
+     */
+    public void setMapping(MappingPlan mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * Quarantine the documents that cannot be parsed or triplified instead of printing their stack trace
+     * @param quarantine The quarantine of the run, or null to print the errors; failed documents then get no statements
+     */
+    public void setQuarantine(Quarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
     /**
      * Create a general list of Jena Statements from a JSON
      * @param inputJSON
@@ -28,19 +70,85 @@ public class PublicContractsTriplifier implements JSONTriplifier {
      *
      */
     public List<Statement> triplifyJSON(String inputJSON, String pathJSON) {
-        List<Statement> results = new ArrayList<>();
-        ObjectMapper mapper = new ObjectMapper();
+        long start = System.nanoTime();
+        JsonNode rootNode;
         try {
-            JsonNode rootNode = mapper.readValue(inputJSON, JsonNode.class);
-            results.addAll(createStatements(rootNode));
+            // Trees are built without an ObjectMapper, which is slow to create (see JSONTreeReader)
+            rootNode = JSONTreeReader.readTree(inputJSON.getBytes(StandardCharsets.UTF_8));
+            if (rootNode == null) {
+                throw new IOException("No content to map due to end-of-input");
+            }
         } catch (Exception e){
+            if (quarantine != null) {
+                quarantine.add(pathJSON, "parse", e, (System.nanoTime() - start) / 1000000);
+                return new ArrayList<>();
+            }
             System.out.println(pathJSON);
             e.printStackTrace();
+            return mapping != null ? new ArrayList<>(mapping.getStaticStatements()) : createProcedureTypeStatements();
+        }
+        return triplifyJSON(rootNode, pathJSON);
+    }
+
+    /**
+     * Create a general list of Jena Statements from an already parsed JSON
+     * @param rootNode The root node of the JSON, for instance read from a binary cache
+     * @return A list of Jena Statements
+     *
+     */
+    public List<Statement> triplifyJSON(JsonNode rootNode, String pathJSON) {
+        return triplifyJSON(rootNode, pathJSON, null);
+    }
+
+    /**
+     * Same as triplifyJSON, reporting a document that cannot be triplified to the caller
+     * @param onError Receives the error of a document that cannot be triplified, which then gets no
+     *                statements; null to quarantine or print it
+     */
+    public List<Statement> triplifyJSON(JsonNode rootNode, String pathJSON, Consumer<Exception> onError) {
+        long start = System.nanoTime();
+        List<Statement> results = new ArrayList<>();
+        // The entities of a document are registered only if it is triplified without errors
+        boolean commit = emitOnceRegistry != null && emitOnceRegistry.begin();
+        try (Span span = Profiling.begin(Stage.TRIPLIFY)) {
+            try {
+                results.addAll(mapping != null ? mapping.map(rootNode, emitOnceRegistry) : createStatements(rootNode));
+            } catch (Exception e){
+                if (emitOnceRegistry != null) {
+                    emitOnceRegistry.discard();
+                }
+                if (onError != null) {
+                    onError.accept(e);
+                    return results;
+                }
+                if (quarantine != null) {
+                    quarantine.add(pathJSON, "triplify", e, (System.nanoTime() - start) / 1000000);
+                    return results;
+                }
+                System.out.println(pathJSON);
+                e.printStackTrace();
+            }
+            results.addAll(mapping != null ? mapping.getStaticStatements() : createProcedureTypeStatements());
+            span.path(pathJSON).lots(countLots(rootNode)).triples(results.size());
+        } finally {
+            if (commit) {
+                emitOnceRegistry.commit(emitOnceRegistry.end());
+            }
         }
-        results.addAll(createProcedureTypeStatements());
         return results;
     }
 
+    /**
+     * @return The number of lots of a document: one for a single lot, the size of data.lotto for a full download
+     */
+    public static int countLots(JsonNode rootNode) {
+        if (rootNode == null) {
+            return 0;
+        }
+        JsonNode lots = rootNode.path("data").path("lotto");
+        return lots.isArray() ? lots.size() : 1;
+    }
+
     /**
      * Create general statements from JSON produced using XML files of Italian public contracts.
      * @param record The input JSON for creating CIG statements.
@@ -48,7 +156,7 @@ public class PublicContractsTriplifier implements JSONTriplifier {
      * @return A list of Jena Statements
      *
      */
-    private List createStatements(JsonNode record){
+    private List<Statement> createStatements(JsonNode record){
         List<Statement> results = new ArrayList<>();
 
         String cig = "";
@@ -71,7 +179,7 @@ public class PublicContractsTriplifier implements JSONTriplifier {
         // Create errors field for RDF
         int errorIndex = 0;
 
-        while(errors.get(errorIndex) != null){
+        while(errors != null && errors.get(errorIndex) != null){
             Statement errorStatement = ResourceFactory.createStatement(
                     subject,
                     ResourceFactory.createProperty(BASE_URI + "properties/error"),
@@ -537,6 +645,10 @@ public class PublicContractsTriplifier implements JSONTriplifier {
 
         results.add(grBusinessEntity);
 
+        if (emitOnceRegistry != null) {
+            return emitOnceRegistry.firstSight(results);
+        }
+
         return results;
     }
 
@@ -577,6 +689,8 @@ public class PublicContractsTriplifier implements JSONTriplifier {
                                                   Boolean isWinner){
 
         List<Statement> results = new ArrayList<>();
+        // Statements describing the group itself, written only once with the emit-once registry
+        List<Statement> description = new ArrayList<>();
 
         Resource gr =   ResourceFactory.createResource(BASE_URI + "groups/" + groupID);
 
@@ -617,7 +731,7 @@ public class PublicContractsTriplifier implements JSONTriplifier {
                 RDFS.label,
                 ResourceFactory.createLangLiteral("Raggruppamento con capogruppo/mandataria con identificavo " + groupHead, "it"));
 
-        results.add(group);
+        description.add(group);
 
         Statement bidder = ResourceFactory.createStatement(
                 td,
@@ -668,7 +782,7 @@ public class PublicContractsTriplifier implements JSONTriplifier {
                 RDF.type,
                 FOAF.Group);
 
-        results.add(foafGroup);
+        description.add(foafGroup);
 
         int a = 0;
         while (record.get(a) != null) {
@@ -701,20 +815,20 @@ public class PublicContractsTriplifier implements JSONTriplifier {
                 role = ResourceFactory.createStatement(gr, rl, pt);
                 Literal rlabel = ResourceFactory.createLangLiteral(getValue("ruolo", value), "it");
                 Statement roleLabel = ResourceFactory.createStatement(rl, RDFS.label, rlabel);
-                results.add(roleLabel);
+                description.add(roleLabel);
 
                 Statement isRoleSubproperty = ResourceFactory.createStatement(
                         rl,
                         RDFS.subPropertyOf,
                         ResourceFactory.createProperty("http://www.w3.org/ns/org#", "role"));
 
-                results.add(isRoleSubproperty);
+                description.add(isRoleSubproperty);
 
             } else {
                 role = ResourceFactory.createStatement(gr, FOAF.member, pt);
             }
 
-            results.add(role);
+            description.add(role);
 
             if(getValue("ruoloOriginale", value) != "") { // This property tracks errors in the role values
                 Statement originalRole = ResourceFactory.createStatement(
@@ -722,13 +836,15 @@ public class PublicContractsTriplifier implements JSONTriplifier {
                         ResourceFactory.createProperty(BASE_URI + "properties/originalRole"),
                         ResourceFactory.createPlainLiteral(getValue("ruoloOriginal", value))
                 );
-                results.add(originalRole);
+                description.add(originalRole);
             }
 
             results.addAll(createSingleParticipant(value, hasNationality, isItalian, idParticipant));
             a++;
         }
 
+        results.addAll(emitOnceRegistry != null ? emitOnceRegistry.firstSight(description) : description);
+
         return results;
     }
 
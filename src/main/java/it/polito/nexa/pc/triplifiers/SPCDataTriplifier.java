@@ -10,6 +10,9 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.vocabulary.OWL;
+import it.polito.nexa.pc.profiling.Profiling;
+import it.polito.nexa.pc.profiling.Span;
+import it.polito.nexa.pc.profiling.Stage;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,19 +45,22 @@ public class SPCDataTriplifier implements JSONTriplifier {
     public List<Statement> semanticAlignment (Resource subject, String endpoint, String query) {
         List<Statement> results = new ArrayList<>();
         System.out.println(query);
-        QueryExecution qe = QueryExecutionFactory.sparqlService(endpoint, query);
-        ResultSet rs = qe.execSelect();
-        while (rs.hasNext()) {
-            QuerySolution qs = rs.next();
-            if(qs.get("entity") != null) {
-                Statement owlSameAs = ResourceFactory.createStatement(subject,
-                        OWL.sameAs,
-                        ResourceFactory.createResource(qs.get("entity").asNode().toString()));
-                results.add(owlSameAs);
-                System.out.println(owlSameAs);
-            }else {
-                System.out.println("SameAs not found");
+        try (Span span = Profiling.begin(Stage.ALIGNMENT)) {
+            QueryExecution qe = QueryExecutionFactory.sparqlService(endpoint, query);
+            ResultSet rs = qe.execSelect();
+            while (rs.hasNext()) {
+                QuerySolution qs = rs.next();
+                if(qs.get("entity") != null) {
+                    Statement owlSameAs = ResourceFactory.createStatement(subject,
+                            OWL.sameAs,
+                            ResourceFactory.createResource(qs.get("entity").asNode().toString()));
+                    results.add(owlSameAs);
+                    System.out.println(owlSameAs);
+                }else {
+                    System.out.println("SameAs not found");
+                }
             }
+            span.path(subject.getURI()).entities(1).triples(results.size());
         }
         return results;
     }
@@ -0,0 +1,98 @@
+package it.polito.nexa.pc.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints error messages on a background thread, at most a given number per second.
+ *
+ * The callers only put the message in a bounded queue and never wait for the console: when the
+ * queue is full or the rate is exceeded the message is dropped and counted, and the count is
+ * printed once per second, so a burst of errors does not slow down the threads that report them.
+ */
+public class ErrorLog {
+
+    private static int CAPACITY = 1024;
+
+    private BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private int perSecond;
+    private AtomicLong dropped = new AtomicLong();
+    private long suppressed = 0;
+    private Thread printer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param perSecond Messages printed per second, the others are only counted
+     */
+    public ErrorLog(int perSecond) {
+        this.perSecond = perSecond;
+        printer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                print();
+            }
+        }, "error-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public void log(String message) {
+        if (closed || !queue.offer(message)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Print the messages still queued, within the rate, and the number of messages not shown
+     */
+    public void close() {
+        closed = true;
+        printer.interrupt();
+        try {
+            printer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void print() {
+        long windowStart = System.nanoTime();
+        int printed = 0;
+        while (true) {
+            String message;
+            try {
+                message = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                message = null;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                reportSuppressed();
+                windowStart = now;
+                printed = 0;
+            }
+            if (message == null && closed && queue.isEmpty()) {
+                reportSuppressed();
+                return;
+            }
+            if (message != null) {
+                if (printed < perSecond) {
+                    System.out.println(message);
+                    printed++;
+                } else {
+                    suppressed++;
+                }
+            }
+        }
+    }
+
+    private void reportSuppressed() {
+        long count = suppressed + dropped.getAndSet(0);
+        if (count > 0) {
+            System.out.println("... " + count + " more errors not shown");
+        }
+        suppressed = 0;
+    }
+}
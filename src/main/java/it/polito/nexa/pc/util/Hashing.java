@@ -0,0 +1,35 @@
+package it.polito.nexa.pc.util;
+
+/**
+ * Non-cryptographic hash functions used to key identifiers in primitive collections.
+ */
+public class Hashing {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * 64-bit FNV-1a hash of a string followed by the MurmurHash3 finalizer. With 64 bits
+     * the chance of a collision among 10^7 identifiers is about 3 in a million.
+     */
+    public static long hash64(CharSequence s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h ^= (c & 0xff);
+            h *= FNV_PRIME;
+            h ^= (c >>> 8);
+            h *= FNV_PRIME;
+        }
+        return fmix64(h);
+    }
+
+    public static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
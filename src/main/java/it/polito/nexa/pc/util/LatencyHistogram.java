@@ -0,0 +1,60 @@
+package it.polito.nexa.pc.util;
+
+/**
+ * Histogram of latencies in microseconds with logarithmic buckets (about 4% wide), enough to
+ * report percentiles of long runs in constant memory.
+ */
+public class LatencyHistogram {
+
+    private static final double BASE = 1.04;
+
+    private long[] buckets = new long[600];
+    private long count = 0;
+    private long max = 0;
+
+    public synchronized void record(long micros) {
+        if (micros < 1) {
+            micros = 1;
+        }
+        int bucket = (int) (Math.log(micros) / Math.log(BASE));
+        buckets[Math.min(bucket, buckets.length - 1)]++;
+        count++;
+        max = Math.max(max, micros);
+    }
+
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @param percentile A value between 0 and 100
+     * @return The upper bound of the bucket containing the percentile, in microseconds
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(max, (long) Math.pow(BASE, i + 1));
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized String summary() {
+        return String.format("count=%d p50=%dus p95=%dus p99=%dus max=%dus",
+                count, percentile(50), percentile(95), percentile(99), max);
+    }
+}
@@ -0,0 +1,110 @@
+package it.polito.nexa.pc.util;
+
+/**
+ * Set of primitive longs with open addressing and linear probing.
+ * It stores millions of hashes without boxing them: 8 bytes per slot, at most half of the
+ * slots used. The value 0 marks an empty slot, so it is remapped to a fixed constant.
+ */
+public class LongHashSet {
+
+    private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+
+    private long[] slots;
+    private int size = 0;
+
+    public LongHashSet() {
+        this(1024);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    /**
+     * Add a key to the set
+     * @return true if the key was not already present
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            key = ZERO_KEY;
+        }
+        int mask = slots.length - 1;
+        int i = mix(key) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = key;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) {
+            key = ZERO_KEY;
+        }
+        int mask = slots.length - 1;
+        int i = mix(key) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        slots = new long[16];
+        size = 0;
+    }
+
+    /**
+     * Copy the keys in an array, for instance to persist the set
+     */
+    public long[] toArray() {
+        long[] keys = new long[size];
+        int j = 0;
+        for (long slot : slots) {
+            if (slot != 0) {
+                keys[j++] = slot;
+            }
+        }
+        return keys;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key != 0) {
+                int i = mix(key) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = key;
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}